@@ -1,5 +1,8 @@
 package no.ntnu.controlpanel;
 
+import java.util.List;
+import no.ntnu.greenhouse.ActuatorChange;
+
 /**
  * A communication channel for disseminating control commands to the sensor nodes
  * (sending commands to the server) and receiving notifications about events.
@@ -17,6 +20,13 @@ public interface CommunicationChannel {
 
     void sendActuatorChange(int nodeId, int actuatorId, boolean isOn);
 
+    /**
+     * Request that the state of many actuators is changed, in one message.
+     *
+     * @param changes The requested actuator changes
+     */
+    void sendActuatorChanges(List<ActuatorChange> changes);
+
     /**
      * Open the communication channel.
      *
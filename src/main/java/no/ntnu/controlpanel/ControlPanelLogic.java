@@ -5,6 +5,7 @@ import java.util.LinkedList;
 import java.util.List;
 
 import no.ntnu.greenhouse.Actuator;
+import no.ntnu.greenhouse.ActuatorChange;
 import no.ntnu.greenhouse.ActuatorCollection;
 import no.ntnu.greenhouse.SensorReading;
 import no.ntnu.listeners.common.ActuatorListener;
@@ -112,24 +113,27 @@ public class ControlPanelLogic implements GreenhouseEventListener, ActuatorListe
     }
 
     /**
-     * Turn on or off all actuators in all connected nodes.
+     * Turn on or off all actuators in all connected nodes. All the changes are sent to the
+     * server in one message.
      *
      * @param isOn True to turn on, false to turn off
      */
     public void actuatorTurnOnAllActuators(boolean isOn) {
+        List<ActuatorChange> changes = new ArrayList<>();
         for (SensorActuatorNodeInfo nodeInfo : nodeInfoList) {
             ActuatorCollection actuatorList = nodeInfo.getActuators();
             int nodeId = nodeInfo.getId();
             for (Actuator actuator : actuatorList) {
-                if (communicationChannel != null) {
-                    communicationChannel.sendActuatorChange(nodeId, actuator.getId(), isOn);
-                    System.out.println("Sending actuator change to server");
-                }
+                changes.add(new ActuatorChange(nodeId, actuator.getId(), isOn));
                 listeners.forEach(listener ->
                         listener.onActuatorStateChanged(nodeId, actuator.getId(), isOn)
                 );
             }
         }
+        if (communicationChannel != null) {
+            communicationChannel.sendActuatorChanges(changes);
+            System.out.println("Sending actuator changes to server");
+        }
     }
 
     /**
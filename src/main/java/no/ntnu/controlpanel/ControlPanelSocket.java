@@ -1,18 +1,42 @@
 package no.ntnu.controlpanel;
 
+import no.ntnu.greenhouse.ActuatorChange;
+import no.ntnu.greenhouse.SensorReading;
+import no.ntnu.tools.BinaryFrames;
 import no.ntnu.tools.EncrypterDecrypter;
 import no.ntnu.tools.Logger;
+import no.ntnu.tools.SessionCipher;
 
 import static no.ntnu.greenhouse.GreenhouseSimulator.SERVER_PORT_NUMBER;
 import static no.ntnu.run.ControlPanelStarter.SERVER_HOST;
+import static no.ntnu.tools.Parser.parseDoubleOrError;
+import static no.ntnu.tools.Parser.parseIntegerOrError;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import javax.crypto.SecretKey;
 import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
 
 
 /**
@@ -22,13 +46,30 @@ import java.util.TimerTask;
  */
 
 public class ControlPanelSocket extends Thread implements CommunicationChannel {
+    private static final String SENSOR_UPDATE_PREFIX = "sensorUpdate:";
+    private static final String REQUEST_ID_PREFIX = "#";
+    private static final String SET_ACTUATORS_PREFIX = "setActuators:";
+    private static final String ACTUATOR_STATES_PREFIX = "actuatorStates:";
+    private static final long REQUEST_TIMEOUT_SECONDS = 10;
+    private static final int EVENT_QUEUE_CAPACITY = 1024;
 
     private final ControlPanelLogic logic;
     private Socket socket;
-    private BufferedReader socketReader;
-    private PrintWriter socketWriter;
-    private boolean isConnected = false;
-    private volatile boolean readLineIsLocked;
+    private DataInputStream socketReader;
+    private OutputStream socketWriter;
+    private volatile boolean isConnected = false;
+    private volatile boolean binaryFrames;
+    private SessionCipher sessionCipher;
+    private SessionCipher groupCipher;
+    private final AtomicInteger nextRequestId = new AtomicInteger(1);
+    private final Map<Integer, CompletableFuture<String>> pendingRequests = new ConcurrentHashMap<>();
+    private final BlockingQueue<Runnable> events = new ArrayBlockingQueue<>(EVENT_QUEUE_CAPACITY);
+    // Runs the handling of responses on the dispatcher thread, in order with the pushed messages
+    private final Executor dispatcherExecutor = this::queueEvent;
+    private byte[] lineBuffer = new byte[256];
+    private byte[] frameBuffer = new byte[1024];
+    private Thread reader;
+    private Thread dispatcher;
 
     /**
      * Creates an instance of ControlPanelSocket.
@@ -37,24 +78,261 @@ public class ControlPanelSocket extends Thread implements CommunicationChannel {
      */
     public ControlPanelSocket(ControlPanelLogic logic) {
         this.logic = logic;
-        this.readLineIsLocked = false;
     }
 
     /**
-     * Runs the thread that handles messages sent from the server, continuously reading.
-     * Handles the incoming commands and responds accordingly.
+     * Reads messages from the server until the connection is closed. Blocks on the socket, so
+     * no CPU is used while the server is quiet. Responses complete their request right away,
+     * everything else is queued for the dispatcher thread, so a slow listener never delays
+     * the responses.
      */
-    public synchronized void runThread() {
+    private void readMessages() {
         try {
-            String inputLine;
-            if (socketReader.ready() && !readLineIsLocked) {
-                inputLine = socketReader.readLine();
-                String input = EncrypterDecrypter.decryptMessage(inputLine);
-                handleInput(input);
+            if (binaryFrames) {
+                boolean connected;
+                do {
+                    connected = readFrame();
+                } while (connected);
+            } else {
+                String inputLine;
+                while ((inputLine = readLine()) != null) {
+                    handleMessage(decryptLine(inputLine));
+                }
             }
-        } catch (IOException e) {
-            Logger.error("while reading from the socket: " + e.getMessage());
-            e.printStackTrace();
+        } catch (IOException | IllegalArgumentException e) {
+            if (isConnected) {
+                Logger.error("while reading from the socket: " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (isConnected) {
+            Logger.info("The server closed the connection");
+        }
+        failPendingRequests();
+        dispatcher.interrupt();
+    }
+
+    /**
+     * Reads one line from the server, byte by byte from the buffered stream, so nothing after
+     * it is consumed when the connection switches to binary frames.
+     *
+     * @return The line, without the line terminator, or null at the end of the stream
+     * @throws IOException If reading fails or the line is too long
+     */
+    private String readLine() throws IOException {
+        int length = 0;
+        int b;
+        while ((b = socketReader.read()) != '\n') {
+            if (b < 0) {
+                return null;
+            }
+            if (length == lineBuffer.length) {
+                if (lineBuffer.length >= EncrypterDecrypter.MAX_LINE_LENGTH) {
+                    throw new IOException("Line is too long");
+                }
+                lineBuffer = Arrays.copyOf(lineBuffer, lineBuffer.length * 2);
+            }
+            lineBuffer[length++] = (byte) b;
+        }
+        if (length > 0 && lineBuffer[length - 1] == '\r') {
+            length--;
+        }
+        return new String(lineBuffer, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Reads one binary frame from the server and handles it. Sensor readings and actuator
+     * states are decoded right here, on the reading thread, and only applied by the dispatcher.
+     *
+     * @return False at the end of the stream
+     * @throws IOException If reading fails before the end of the frame
+     * @throws InterruptedException If interrupted while the event queue is full
+     */
+    private boolean readFrame() throws IOException, InterruptedException {
+        int first = socketReader.read();
+        if (first < 0) {
+            return false;
+        }
+        byte[] header = {(byte) first, socketReader.readByte(), socketReader.readByte(),
+                socketReader.readByte()};
+        int length = BinaryFrames.readLength(header, 0);
+        if (frameBuffer.length < length) {
+            frameBuffer = new byte[length];
+        }
+        socketReader.readFully(frameBuffer, 0, length);
+        SessionCipher cipher = frameBuffer[0] == BinaryFrames.GROUP_KEY ? groupCipher : sessionCipher;
+        if (cipher == null) {
+            Logger.error("Broadcast received before the broadcast key");
+            return true;
+        }
+        byte[] body = cipher.decryptFrame(frameBuffer, 1, length - 1);
+        if (body == null || body.length == 0) {
+            return true;
+        }
+        ByteBuffer fields = ByteBuffer.wrap(body, 1, body.length - 1);
+        try {
+            if (body[0] == BinaryFrames.TEXT) {
+                handleMessage(new String(body, 1, body.length - 1, StandardCharsets.UTF_8));
+            } else if (body[0] == BinaryFrames.SENSORS) {
+                handleSensorFrame(fields);
+            } else if (body[0] == BinaryFrames.ACTUATOR_STATES) {
+                List<ActuatorChange> states = BinaryFrames.readActuatorChanges(fields);
+                events.put(() -> updateActuatorStates(states));
+            } else {
+                Logger.error("Unknown frame opcode: " + body[0]);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            Logger.error("Invalid frame from the server: " + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Handles one decrypted text message from the server.
+     *
+     * @param input The message, or null if it could not be decrypted
+     * @throws InterruptedException If interrupted while the event queue is full
+     */
+    private void handleMessage(String input) throws InterruptedException {
+        if (input == null) {
+            return;
+        }
+        if (input.startsWith(REQUEST_ID_PREFIX)) {
+            completeRequest(input);
+        } else if (input.startsWith(EncrypterDecrypter.GROUP_KEY_PREFIX)) {
+            setGroupKey(input);
+        } else {
+            events.put(() -> handleInput(input));
+        }
+    }
+
+    /**
+     * Decodes the sensor readings of a {@link BinaryFrames#SENSORS} frame, queues them for the
+     * dispatcher, and completes the request they answer, if any.
+     *
+     * @param fields The frame body, positioned after the opcode
+     * @throws InterruptedException If interrupted while the event queue is full
+     */
+    private void handleSensorFrame(ByteBuffer fields) throws InterruptedException {
+        int requestId = fields.getInt();
+        int nodeCount = fields.getInt();
+        int[] nodeIds = new int[nodeCount];
+        List<List<SensorReading>> nodeReadings = new ArrayList<>(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            nodeIds[i] = fields.getInt();
+            int sensorCount = fields.getShort() & 0xffff;
+            List<SensorReading> readings = new ArrayList<>(sensorCount);
+            for (int j = 0; j < sensorCount; j++) {
+                String type = BinaryFrames.readString(fields);
+                double value = fields.getDouble();
+                readings.add(new SensorReading(type, value, BinaryFrames.readString(fields)));
+            }
+            nodeReadings.add(readings);
+        }
+        events.put(() -> {
+            for (int i = 0; i < nodeIds.length; i++) {
+                logic.onSensorData(nodeIds[i], nodeReadings.get(i));
+            }
+        });
+        if (requestId != 0) {
+            completeRequest(requestId, "");
+        }
+    }
+
+    /**
+     * Decrypts one line from the server. Broadcasts are marked and encrypted with the broadcast
+     * key, everything else with the session key.
+     *
+     * @param line The line, without the line terminator
+     * @return The decrypted message, or null if it could not be decrypted
+     */
+    private String decryptLine(String line) {
+        if (line.isEmpty() || line.charAt(0) != EncrypterDecrypter.GROUP_LINE_MARKER) {
+            return sessionCipher.decryptMessage(line);
+        }
+        if (groupCipher == null) {
+            Logger.error("Broadcast received before the broadcast key");
+            return null;
+        }
+        return groupCipher.decryptMessage(line.substring(1));
+    }
+
+    /**
+     * Use the broadcast key sent by the server right after the handshake.
+     *
+     * @param message The group key message
+     */
+    private void setGroupKey(String message) {
+        SecretKey groupKey = EncrypterDecrypter.readGroupKeyMessage(message);
+        groupCipher = groupKey != null ? EncrypterDecrypter.createSessionCipher(groupKey) : null;
+        if (groupCipher == null) {
+            Logger.error("Invalid broadcast key, broadcasts can not be read");
+        }
+    }
+
+    /**
+     * Hands the messages pushed by the server to the control panel logic, in the order they
+     * arrived. An event which fails is logged and skipped, the dispatcher must keep running or
+     * the reading thread would block on the full queue.
+     */
+    private void dispatchEvents() {
+        try {
+            while (true) {
+                Runnable event = events.take();
+                try {
+                    event.run();
+                } catch (RuntimeException e) {
+                    Logger.error("Could not handle a message from the server: " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queue an event for the dispatcher thread.
+     *
+     * @param event The event to run on the dispatcher thread
+     */
+    private void queueEvent(Runnable event) {
+        try {
+            events.put(event);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Logger.error("Interrupted while queueing a message from the server");
+        }
+    }
+
+    /**
+     * Completes the pending request which a response belongs to.
+     *
+     * @param response The response in the format "#requestId:response"
+     */
+    private void completeRequest(String response) {
+        int separator = response.indexOf(':');
+        if (separator < 0) {
+            Logger.error("Incorrect response format: " + response);
+            return;
+        }
+        int requestId = parseIntegerOrError(response.substring(REQUEST_ID_PREFIX.length(), separator),
+                "Invalid request ID: " + response);
+        completeRequest(requestId, response.substring(separator + 1));
+    }
+
+    /**
+     * Completes a pending request.
+     *
+     * @param requestId The ID of the request
+     * @param response  The response, without the request ID
+     */
+    private void completeRequest(int requestId, String response) {
+        CompletableFuture<String> request = pendingRequests.remove(requestId);
+        if (request != null) {
+            request.complete(response);
+        } else {
+            Logger.error("Response to unknown request " + requestId);
         }
     }
 
@@ -73,6 +351,12 @@ public class ControlPanelSocket extends Thread implements CommunicationChannel {
         if (rawCommand.contains("updateActuatorStates")) {
             this.updateActuatorStates(rawCommand);
         }
+        if (rawCommand.startsWith(ACTUATOR_STATES_PREFIX)) {
+            this.updateActuatorStatesBatch(rawCommand.substring(ACTUATOR_STATES_PREFIX.length()));
+        }
+        if (rawCommand.startsWith(SENSOR_UPDATE_PREFIX)) {
+            this.updateSensorReadings(rawCommand.substring(SENSOR_UPDATE_PREFIX.length()));
+        }
     }
 
     /**
@@ -84,75 +368,171 @@ public class ControlPanelSocket extends Thread implements CommunicationChannel {
     public void open() {
         try {
             socket = new Socket(SERVER_HOST, SERVER_PORT_NUMBER);
-            socketWriter = new PrintWriter(socket.getOutputStream(), true);
-            socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            socketWriter = new BufferedOutputStream(socket.getOutputStream());
+            socketReader = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
             Logger.info("Successfully connected to: " + SERVER_HOST + ":" + SERVER_PORT_NUMBER);
 
-            getNodes();
-            continuousSensorUpdate();
+            establishSession();
             isConnected = true;
+            startThreads();
+            getNodes();
+            subscribeToSensors();
         } catch (IOException e) {
             Logger.error("Could not connect to server: " + e.getMessage());
         }
     }
 
+    /**
+     * Sends a new session key to the server, encrypted with RSA, and waits for the server to
+     * confirm it. Anything the server sent before the confirmation is still RSA-encrypted and
+     * is skipped, the node list is requested right after anyway. Binary frames are asked for,
+     * and used from then on if the server confirms them.
+     *
+     * @throws IOException If the connection is closed before the session is established
+     */
+    private void establishSession() throws IOException {
+        SecretKey sessionKey = EncrypterDecrypter.generateSessionKey();
+        sessionCipher = sessionKey != null ? EncrypterDecrypter.createSessionCipher(sessionKey) : null;
+        if (sessionCipher == null) {
+            throw new IOException("No session key available");
+        }
+        String handshake = EncrypterDecrypter.createHandshake(sessionKey, true);
+        if (handshake == null) {
+            throw new IOException("Could not encrypt the handshake");
+        }
+        write((handshake + "\n").getBytes(StandardCharsets.ISO_8859_1));
+        String binaryConfirmation = EncrypterDecrypter.SESSION_ESTABLISHED + BinaryFrames.HANDSHAKE_OPTION;
+        String response;
+        do {
+            String line = readLine();
+            if (line == null) {
+                throw new IOException("Connection closed during the handshake");
+            }
+            response = sessionCipher.decryptMessage(line);
+        } while (!EncrypterDecrypter.SESSION_ESTABLISHED.equals(response)
+                && !binaryConfirmation.equals(response));
+        binaryFrames = binaryConfirmation.equals(response);
+        Logger.info("Session established" + (binaryFrames ? " with binary frames" : ""));
+    }
+
+    /**
+     * Writes bytes to the server and flushes them. Synchronized, since requests are sent from
+     * several threads.
+     *
+     * @param bytes The bytes to write
+     * @throws IOException If writing fails
+     */
+    private synchronized void write(byte[] bytes) throws IOException {
+        socketWriter.write(bytes);
+        socketWriter.flush();
+    }
+
+    /**
+     * Start the thread reading from the server, and the thread dispatching the pushed messages.
+     * Both are daemon threads, so they never keep the application running.
+     */
+    private void startThreads() {
+        dispatcher = new Thread(this::dispatchEvents, "control-panel-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        reader = new Thread(this::readMessages, "control-panel-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
     /**
      * This method should close the connection to the server.
      */
     public void close() {
         try {
             if (isConnected) {
+                isConnected = false;
                 socket.close();
                 socketWriter.close();
                 socketReader.close();
                 Logger.info(
                         "Connection with client: " + SERVER_HOST + ":" + SERVER_PORT_NUMBER + " has been closed");
             }
+            failPendingRequests();
         } catch (IOException e) {
             Logger.error("Could not close connection: " + e.getMessage());
         }
     }
 
     /**
-     * Performs socket communication by first sending, then receiving a message.
+     * Fail all the requests still waiting for a response, once no response can arrive anymore.
+     */
+    private void failPendingRequests() {
+        pendingRequests.values().forEach(request ->
+                request.completeExceptionally(new IOException("Connection closed")));
+    }
+
+    /**
+     * Sends a numbered request. The response is matched to the request by its number, so any
+     * number of requests can be in flight at the same time.
      *
      * @param sendMessage the message to be sent
-     * @return the messaged received, or null if an error occurs
+     * @return the response, completed by the reading thread. Completed exceptionally if the
+     *         request could not be sent or no response arrives in time.
      */
-    private String performSocketCommunication(String sendMessage) {
-        String receiveMessage = null;
+    private CompletableFuture<String> sendRequest(String sendMessage) {
+        return sendRequest(requestId -> {
+            String command = REQUEST_ID_PREFIX + requestId + ":" + sendMessage;
+            return binaryFrames ? BinaryFrames.text(command) : command.getBytes(StandardCharsets.UTF_8);
+        });
+    }
 
+    /**
+     * Sends a numbered request, encoded by the caller.
+     *
+     * @param encoder Encodes the request with the given number, as a frame body when using
+     *                binary frames, otherwise as a text message
+     * @return the response, completed by the reading thread. Completed exceptionally if the
+     *         request could not be sent or no response arrives in time.
+     */
+    private CompletableFuture<String> sendRequest(IntFunction<byte[]> encoder) {
+        int requestId = nextRequestId.getAndIncrement();
+        CompletableFuture<String> response = new CompletableFuture<>();
+        byte[] encoded = encoder.apply(requestId);
+        byte[] encrypted = binaryFrames
+                ? sessionCipher.encryptToFrame(encoded, BinaryFrames.SESSION_KEY)
+                : sessionCipher.encryptToLine(encoded);
+        if (encrypted == null) {
+            Logger.error("Error encrypting the command.");
+            response.completeExceptionally(new IllegalStateException("Error encrypting the command."));
+            return response;
+        }
+        pendingRequests.put(requestId, response);
         try {
-            String encryptedCommand = EncrypterDecrypter.encryptMessage(sendMessage);
-            if (encryptedCommand != null) {
-                //"Lock" the readLine function, so the other thread cannot read the line until this method is done running.
-                this.readLineIsLocked = true;
-                socketWriter.println(encryptedCommand);
-                receiveMessage = socketReader.readLine();
-                this.readLineIsLocked = false;
-
-                receiveMessage = EncrypterDecrypter.decryptMessage(receiveMessage);
-            } else {
-                Logger.error("Error encrypting the command.");
-            }
+            write(encrypted);
         } catch (IOException e) {
-            Logger.error("An unexpected error occurred: " + e.getMessage());
+            pendingRequests.remove(requestId);
+            response.completeExceptionally(e);
+            return response;
         }
-        //In case of an exception, make sure it is unlocked
-        this.readLineIsLocked = false;
-
-        return receiveMessage;
+        return response.orTimeout(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .whenComplete((message, error) -> pendingRequests.remove(requestId));
     }
 
     /**
      * This method should get all nodes from server, and add them to
-     * the controlPanel.
+     * the controlPanel. The nodes are added by the dispatcher thread once the response arrives.
      */
     public void getNodes() {
         Logger.info("Requesting nodes from server...");
-        String nodes = performSocketCommunication("getNodes");
+        sendRequest("getNodes").thenAcceptAsync(this::loadNodes, dispatcherExecutor).exceptionally(error -> {
+            Logger.error("Could not get the nodes: " + error.getMessage());
+            return null;
+        });
+    }
 
+    /**
+     * Add the nodes received from the server to the controlPanel.
+     *
+     * @param nodes The nodes in the getNodes format
+     */
+    private void loadNodes(String nodes) {
         //Does not contain a ";" if there are no nodes. base64 also does not have the symbol, so this catches decryption errors
         if (!nodes.contains(";")) {
             Logger.info("Nodes not loaded, since no nodes received");
@@ -176,14 +556,87 @@ public class ControlPanelSocket extends Thread implements CommunicationChannel {
      * @param actuatorId Node-wide unique ID of the actuator
      * @param isOn       When true, actuator must be turned on; off when false.
      */
-    public void sendActuatorChange(int actuatorId, int nodeId, boolean isOn) {
-        Logger.info("Sending command to actuator " + nodeId + " on node " + actuatorId);
-        String on = isOn ? "0" : "1";
-        String command = actuatorId + ", " + nodeId + ", " + on;
+    public void sendActuatorChange(int nodeId, int actuatorId, boolean isOn) {
+        Logger.info("Sending command to actuator " + actuatorId + " on node " + nodeId);
+        CompletableFuture<String> request;
+        if (binaryFrames) {
+            List<ActuatorChange> change = List.of(new ActuatorChange(nodeId, actuatorId, isOn));
+            request = sendRequest(requestId -> BinaryFrames.setActuators(requestId, change));
+        } else {
+            // The single actuator command of the text protocol uses 0 for on
+            String on = isOn ? "0" : "1";
+            request = sendRequest(nodeId + ", " + actuatorId + ", " + on);
+        }
 
-        String response = performSocketCommunication(command);
-        Logger.info(response);
+        request.whenComplete((response, error) -> {
+            if (error != null) {
+                Logger.error("Error sending command to actuator " + actuatorId + " on node " + nodeId
+                        + ": " + error.getMessage());
+            } else {
+                Logger.info(response);
+            }
+        });
+    }
 
+    /**
+     * Send many actuator changes in one request, which the server applies in one pass and
+     * acknowledges once.
+     *
+     * @param changes The requested actuator changes
+     */
+    @Override
+    public void sendActuatorChanges(List<ActuatorChange> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        Logger.info("Sending " + changes.size() + " actuator changes");
+        CompletableFuture<String> request;
+        if (binaryFrames) {
+            request = sendRequest(requestId -> BinaryFrames.setActuators(requestId, changes));
+        } else {
+            request = sendRequest(SET_ACTUATORS_PREFIX + changes.stream()
+                    .map(ActuatorChange::toString)
+                    .collect(Collectors.joining(";")));
+        }
+
+        request.whenComplete((response, error) -> {
+            if (error != null) {
+                Logger.error("Error sending " + changes.size() + " actuator changes: "
+                        + error.getMessage());
+            } else {
+                Logger.info(response);
+            }
+        });
+    }
+
+    /**
+     * Update the state of many actuators, from a message in the format
+     * "nodeId,actuatorId,ON|OFF;nodeId,actuatorId,ON|OFF;...".
+     *
+     * @param states The new actuator states
+     */
+    private void updateActuatorStatesBatch(String states) {
+        for (String state : states.split(";")) {
+            String[] parts = state.split(",");
+            if (parts.length != 3) {
+                Logger.error("Invalid actuator state: " + state);
+                continue;
+            }
+            int nodeId = parseIntegerOrError(parts[0], "Invalid node ID: " + parts[0]);
+            int actuatorId = parseIntegerOrError(parts[1], "Invalid actuator ID: " + parts[1]);
+            logic.onActuatorStateWithoutNofify(nodeId, actuatorId, parts[2].equals("ON"));
+        }
+    }
+
+    /**
+     * Update the state of many actuators, decoded from a binary frame.
+     *
+     * @param states The new actuator states
+     */
+    private void updateActuatorStates(List<ActuatorChange> states) {
+        for (ActuatorChange state : states) {
+            logic.onActuatorStateWithoutNofify(state.getNodeId(), state.getActuatorId(), state.isOn());
+        }
     }
 
     private void updateActuatorStates(String rawCommand){
@@ -198,14 +651,67 @@ public class ControlPanelSocket extends Thread implements CommunicationChannel {
     }
 
     /**
-     * This method should update the sensors continually.
+     * Update the sensor readings of the nodes, from a message in the format
+     * "nodeId1;type1=value1 unit1,type2=value2 unit2/nodeId2;...".
+     *
+     * @param sensorInfo The sensor readings of one or more nodes
+     */
+    private void updateSensorReadings(String sensorInfo) {
+        for (String nodeInfo : sensorInfo.split("/")) {
+            String[] parts = nodeInfo.trim().split(";");
+            if (parts.length != 2) {
+                continue;
+            }
+            int nodeId = parseIntegerOrError(parts[0], "Invalid node ID: " + parts[0]);
+            List<SensorReading> readings = new ArrayList<>();
+            for (String reading : parts[1].split(",")) {
+                readings.add(parseSensorReading(reading.trim()));
+            }
+            logic.onSensorData(nodeId, readings);
+        }
+    }
+
+    /**
+     * Parse one sensor reading.
+     *
+     * @param reading The reading in the format "type=value unit"
+     * @return The sensor reading
+     */
+    private SensorReading parseSensorReading(String reading) {
+        String[] typeAndValue = reading.split("=");
+        if (typeAndValue.length != 2) {
+            throw new IllegalArgumentException("Invalid sensor reading: " + reading);
+        }
+        String[] valueAndUnit = typeAndValue[1].split(" ");
+        double value = parseDoubleOrError(valueAndUnit[0], "Invalid sensor value: " + valueAndUnit[0]);
+        String unit = valueAndUnit.length > 1 ? valueAndUnit[1] : "";
+        return new SensorReading(typeAndValue[0], value, unit);
+    }
+
+    /**
+     * Ask the server to push new sensor readings as soon as they are available, instead of
+     * polling for them.
+     */
+    public void subscribeToSensors() {
+        sendRequest("subscribeSensors").whenComplete((response, error) ->
+                Logger.info("Sensor subscription: " + (error == null ? response : error.getMessage())));
+    }
+
+    /**
+     * This method should update the sensors continually. With binary frames the readings are
+     * applied when the frame arrives, and the response itself is empty.
      */
     public void updateSensorData() {
-        String sensors = performSocketCommunication("updateSensor");
+        sendRequest("updateSensor").thenAcceptAsync(readings -> {
+            if (!readings.isEmpty()) {
+                updateSensorReadings(readings);
+            }
+        }, dispatcherExecutor);
     }
 
     /**
      * This method sends requests to the server for sensor updates every 1 second.
+     * Not needed when subscribed to the sensors.
      */
     public void continuousSensorUpdate() {
         Timer timer = new Timer();
@@ -1,110 +1,370 @@
 package no.ntnu.endclients;
 
+import no.ntnu.greenhouse.ActuatorChange;
 import no.ntnu.greenhouse.GreenhouseSimulator;
+import no.ntnu.greenhouse.SensorActuatorNode;
+import no.ntnu.tools.BinaryFrames;
 import no.ntnu.tools.EncrypterDecrypter;
 import no.ntnu.tools.Logger;
+import no.ntnu.tools.SessionCipher;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import javax.crypto.SecretKey;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static no.ntnu.tools.Parser.parseIntegerOrError;
 
 
 /**
- * Handles each connected Client in a separate thread.
+ * Handles the protocol of one connected client. Decrypts and processes incoming commands and
+ * encrypts outgoing messages. How the lines are actually read from and written to the network
+ * is left to the subclasses, see {@link SocketClientHandler} and {@link NioClientHandler}.
+ * Clients which start with a session key handshake get AES-GCM encryption, other clients keep
+ * using RSA for every message. Clients asking for it in the handshake switch from base64 lines
+ * to {@link BinaryFrames} once the session is established.
  */
 
-public class ClientHandler extends Thread {
-    protected Socket socket;
+public abstract class ClientHandler {
+
+    /**
+     * The prefix of the messages pushing new sensor readings of one node to subscribed clients.
+     */
+    public static final String SENSOR_UPDATE_PREFIX = "sensorUpdate:";
+
+    /**
+     * The prefix of the command changing the state of many actuators at once. The new states
+     * are broadcast with {@link #ACTUATOR_STATES_PREFIX}.
+     */
+    public static final String SET_ACTUATORS_PREFIX = "setActuators:";
+
+    /**
+     * The prefix of the message broadcasting the new states of many actuators at once.
+     */
+    public static final String ACTUATOR_STATES_PREFIX = "actuatorStates:";
+
+    /**
+     * Every this many updateSensor responses, all sensors are sent instead of only the changed
+     * ones, so a client which missed something gets back in sync.
+     */
+    public static final int SENSOR_KEYFRAME_INTERVAL = 30;
+
+    /**
+     * Requests starting with "#" + number + ":" get their response prefixed the same way, so the
+     * client can match the response to the request.
+     */
+    private static final String REQUEST_ID_PREFIX = "#";
+
+    /**
+     * The largest number of lines waiting to be written to one client.
+     */
+    public static final int OUTBOUND_QUEUE_CAPACITY = 256;
+
     private final GreenhouseSimulator simulator;
-    private BufferedReader reader;
-    private PrintWriter writer;
+    protected final OutboundQueue outbound;
+    private volatile SessionCipher sessionCipher;
+    private volatile boolean binaryFrames;
+    private volatile boolean subscribedToSensors;
+    private long sensorWatermark = -1;
+    private int sensorResponsesSinceKeyframe;
 
 
     /**
      * Creates a new instance of the ClientHandler class.
      *
-     * @param socket    The socket representing the client connection
      * @param simulator The greenhouse simulator associated with this client handler
      */
-    public ClientHandler(Socket socket, GreenhouseSimulator simulator) {
-        this.socket = socket;
+    protected ClientHandler(GreenhouseSimulator simulator) {
         this.simulator = simulator;
-        try {
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            writer = new PrintWriter(socket.getOutputStream(), true);
-        } catch (IOException e) {
-            e.printStackTrace();
+        this.outbound = new OutboundQueue(OUTBOUND_QUEUE_CAPACITY, simulator.getSlowConsumerPolicy());
+    }
+
+    /**
+     * Handles one encrypted line received from the client.
+     *
+     * @param inputLine The encrypted line, without the line terminator
+     */
+    protected void handleMessage(String inputLine) {
+        byte[] line = inputLine.getBytes(StandardCharsets.ISO_8859_1);
+        handleMessage(line, 0, line.length);
+    }
+
+    /**
+     * Handles one encrypted line received from the client, straight from the receive buffer.
+     *
+     * @param line   The buffer holding the line
+     * @param offset Where the line starts in the buffer
+     * @param length The length of the line, without the line terminator
+     */
+    protected void handleMessage(byte[] line, int offset, int length) {
+        SessionCipher cipher = sessionCipher;
+        if (cipher != null) {
+            handleInput(cipher.decryptLine(line, offset, length));
+            return;
+        }
+        String a = EncrypterDecrypter.decryptMessage(
+                new String(line, offset, length, StandardCharsets.ISO_8859_1));
+        if (a != null && a.startsWith(EncrypterDecrypter.SESSION_KEY_PREFIX)) {
+            establishSession(a);
+        } else {
+            handleInput(a);
         }
     }
 
     /**
-     * Runs the client handler thread, continuously reading messages from the client.
-     * Handles the incoming commands and responds accordingly.
+     * Switches the connection over to the session key sent by the client, confirms it, and
+     * sends the broadcast key. Done while holding the send lock, so no message encrypted with
+     * RSA can be sent after the confirmation, and no broadcast before the broadcast key.
+     *
+     * @param handshake The decrypted handshake message
      */
-    @Override
-    public void run() {
-        try {
-            System.out.println("Client on port: " + socket.getPort() + " is connected");
-            String inputLine;
-            while ((inputLine = reader.readLine()) != null) {
-                String a = EncrypterDecrypter.decryptMessage(inputLine);
-                handleInput(a);
-            }
-        } catch (IOException e) {
-            Logger.error("while reading from the socket: " + e.getMessage());
-            e.printStackTrace();
+    private synchronized void establishSession(String handshake) {
+        SecretKey key = EncrypterDecrypter.readHandshake(handshake);
+        SessionCipher cipher = key != null ? EncrypterDecrypter.createSessionCipher(key) : null;
+        if (cipher == null) {
+            Logger.error("Incorrect handshake, keeping RSA encryption");
+            return;
+        }
+        sessionCipher = cipher;
+        if (handshake.endsWith(BinaryFrames.HANDSHAKE_OPTION)) {
+            // The confirmation is the last line, everything after it is framed
+            send(EncrypterDecrypter.SESSION_ESTABLISHED + BinaryFrames.HANDSHAKE_OPTION);
+            binaryFrames = true;
+        } else {
+            send(EncrypterDecrypter.SESSION_ESTABLISHED);
+        }
+        send(EncrypterDecrypter.createGroupKeyMessage(simulator.getGroupKey()));
+    }
+
+    /**
+     * Check whether the client has switched to binary frames. The transport must read frames
+     * instead of lines from then on.
+     *
+     * @return True when the client asked for binary frames in the handshake
+     */
+    protected boolean isBinary() {
+        return binaryFrames;
+    }
+
+    /**
+     * Handles one binary frame received from the client, straight from the receive buffer.
+     *
+     * @param frame  The buffer holding the frame
+     * @param offset Where the frame starts in the buffer, at the key byte after the length
+     * @param length The length of the frame, counting the key byte
+     */
+    protected void handleFrame(byte[] frame, int offset, int length) {
+        SessionCipher cipher = sessionCipher;
+        if (cipher == null || frame[offset] != BinaryFrames.SESSION_KEY) {
+            Logger.error("Frame not encrypted with the session key, ignoring it");
+            return;
+        }
+        byte[] body = cipher.decryptFrame(frame, offset + 1, length - 1);
+        if (body == null || body.length == 0) {
+            return;
+        }
+        if (body[0] == BinaryFrames.TEXT) {
+            handleInput(new String(body, 1, body.length - 1, StandardCharsets.UTF_8));
+        } else if (body[0] == BinaryFrames.SET_ACTUATORS) {
+            handleSetActuatorsFrame(ByteBuffer.wrap(body, 1, body.length - 1));
+        } else {
+            Logger.error("Unknown frame opcode: " + body[0]);
         }
-        String clientAddress = socket.getRemoteSocketAddress().toString();
-        Logger.info("Client at " + clientAddress + " has disconnected.");
-        simulator.removeDisconnectedClient(this);
     }
 
     /**
      * Handles the processing of a raw command, taking appropriate actions based on the command's content.
      *
-     * @param rawCommand The command as a string
+     * @param rawCommand The command as a string, optionally prefixed with a request ID
      */
     private void handleInput(String rawCommand) {
         if (rawCommand == null) {
             return;
         }
+        String requestId = null;
+        if (rawCommand.startsWith(REQUEST_ID_PREFIX)) {
+            int separator = rawCommand.indexOf(':');
+            if (separator < 0) {
+                Logger.error("Incorrect command format: " + rawCommand);
+                return;
+            }
+            requestId = rawCommand.substring(REQUEST_ID_PREFIX.length(), separator);
+            rawCommand = rawCommand.substring(separator + 1);
+        }
         if (rawCommand.equals("getNodes")) {
-            handleGetNodesCommand();
+            handleGetNodesCommand(requestId);
         } else if (rawCommand.equals("updateSensor")) {
-            handleUpdateSensorCommand();
+            handleUpdateSensorCommand(requestId);
+        } else if (rawCommand.equals("subscribeSensors")) {
+            handleSubscribeSensorsCommand(requestId);
+        } else if (rawCommand.startsWith(SET_ACTUATORS_PREFIX)) {
+            handleSetActuatorsCommand(requestId, rawCommand.substring(SET_ACTUATORS_PREFIX.length()));
         } else {
-            processActuatorCommand(rawCommand);
+            processActuatorCommand(requestId, rawCommand);
+        }
+    }
+
+    /**
+     * Sends the response to a request, prefixed with the ID of the request if it had one.
+     *
+     * @param requestId The ID of the request, or null for unnumbered requests
+     * @param response  The response
+     */
+    private void respond(String requestId, String response) {
+        if (requestId != null) {
+            send(REQUEST_ID_PREFIX + requestId + ":" + response);
+        } else {
+            send(response);
         }
     }
 
 
     /**
      * Sends the list of nodes in the greenhouse to the client in an encrypted format.
+     *
+     * @param requestId The ID of the request, or null
      */
-    private void handleGetNodesCommand() {
-        writer.println(EncrypterDecrypter.encryptMessage(simulator.getNodes()));
+    private void handleGetNodesCommand(String requestId) {
+        byte[] nodes = simulator.getTopology().getBytes();
+        if (requestId == null) {
+            send(nodes);
+            return;
+        }
+        byte[] prefix = (REQUEST_ID_PREFIX + requestId + ":").getBytes(StandardCharsets.UTF_8);
+        byte[] response = new byte[prefix.length + nodes.length];
+        System.arraycopy(prefix, 0, response, 0, prefix.length);
+        System.arraycopy(nodes, 0, response, prefix.length, nodes.length);
+        send(response);
     }
 
 
     /**
-     * Sends updated sensor-values to the client in an encrypted format.
+     * Sends updated sensor-values to the client in an encrypted format. Only the nodes which
+     * changed since the previous response are included, except for the first response and
+     * every {@link #SENSOR_KEYFRAME_INTERVAL}th one, which include all nodes.
+     *
+     * @param requestId The ID of the request, or null
      */
 
-    private void handleUpdateSensorCommand() {
-        writer.println(EncrypterDecrypter.encryptMessage(simulator.updateSensors()));
+    private void handleUpdateSensorCommand(String requestId) {
+        int frameRequestId = toFrameRequestId(requestId);
+        // Read before building, a node changing meanwhile is then sent again next time
+        long latestVersion = SensorActuatorNode.getLatestSensorVersion();
+        long watermark = sensorWatermark;
+        if (watermark < 0 || sensorResponsesSinceKeyframe >= SENSOR_KEYFRAME_INTERVAL) {
+            watermark = -1;
+            sensorResponsesSinceKeyframe = 0;
+        } else {
+            sensorResponsesSinceKeyframe++;
+        }
+        if (binaryFrames && frameRequestId >= 0) {
+            sendFrame(simulator.encodeSensorFrameSince(frameRequestId, watermark));
+        } else {
+            String prefix = requestId != null ? REQUEST_ID_PREFIX + requestId + ":" : null;
+            send(simulator.encodeSensorsSince(prefix, watermark));
+        }
+        sensorWatermark = latestVersion;
+    }
+
+    /**
+     * Converts the ID of a request to the number used in binary frames.
+     *
+     * @param requestId The ID of the request, or null
+     * @return The ID as a positive number, 0 when there is no ID, or -1 when the ID is not
+     *         a positive number and the response must be sent as text
+     */
+    private static int toFrameRequestId(String requestId) {
+        if (requestId == null) {
+            return 0;
+        }
+        try {
+            int id = Integer.parseInt(requestId);
+            return id > 0 ? id : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
+    /**
+     * Confirms the subscription and sends all the current sensor values once. From then on
+     * the client gets new values pushed as soon as a node produces them.
+     *
+     * @param requestId The ID of the request, or null
+     */
+    private void handleSubscribeSensorsCommand(String requestId) {
+        respond(requestId, "subscribed");
+        subscribedToSensors = true;
+        if (binaryFrames) {
+            sendFrame(simulator.encodeSensorFrameSince(0, -1));
+        } else {
+            send(simulator.encodeSensorsSince(SENSOR_UPDATE_PREFIX, -1));
+        }
+    }
+
+
+    /**
+     * Changes the state of many actuators in one pass. The command is acknowledged once with
+     * "OK", and the new states are broadcast to all clients in one message. Malformed changes
+     * are logged and skipped, the other changes are still made.
+     *
+     * @param requestId The ID of the request, or null
+     * @param changes   The changes in the format "nodeId,actuatorId,1|0;nodeId,actuatorId,1|0;..."
+     */
+    private void handleSetActuatorsCommand(String requestId, String changes) {
+        List<ActuatorChange> actuatorChanges = new ArrayList<>();
+        for (String change : changes.split(";")) {
+            String[] parts = change.split(",");
+            if (parts.length != 3) {
+                Logger.error("Incorrect actuator change format: " + change);
+                continue;
+            }
+            try {
+                actuatorChanges.add(new ActuatorChange(
+                        parseIntegerOrError(parts[0].trim(), "Invalid node ID: " + parts[0]),
+                        parseIntegerOrError(parts[1].trim(), "Invalid actuator ID: " + parts[1]),
+                        !parts[2].trim().equals("0")));
+            } catch (NumberFormatException e) {
+                Logger.error("Incorrect actuator change: " + e.getMessage());
+            }
+        }
+        simulator.handleActuatorChanges(actuatorChanges);
+        if (requestId != null) {
+            respond(requestId, "OK");
+        }
+    }
+
+
+    /**
+     * Changes the state of many actuators in one pass, as sent in a binary frame. The frame is
+     * acknowledged with "OK" when it has a request ID.
+     *
+     * @param body The frame body, positioned after the opcode
+     */
+    private void handleSetActuatorsFrame(ByteBuffer body) {
+        try {
+            int requestId = body.getInt();
+            simulator.handleActuatorChanges(BinaryFrames.readActuatorChanges(body));
+            if (requestId != 0) {
+                respond(String.valueOf(requestId), "OK");
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            Logger.error("Incorrect actuator frame: " + e.getMessage());
+        }
     }
 
 
     /**
-     * Processes an actuator command, and sends a response to the client in
-     * an encrypted format.
+     * Processes an actuator command. Numbered commands are acknowledged with "OK", the new
+     * state itself is broadcast to all clients.
      *
+     * @param requestId  The ID of the request, or null
      * @param rawCommand The command as a string
      */
 
-    private void processActuatorCommand(String rawCommand) {
+    private void processActuatorCommand(String requestId, String rawCommand) {
         String[] parts = rawCommand.split(",");
         if (parts.length == 3) {
             int nodeId = Integer.parseInt(parts[0].trim());
@@ -113,6 +373,9 @@ public class ClientHandler extends Thread {
             boolean isOn = (on != 0);
 
             simulator.handleActuator(actuatorId, nodeId, isOn);
+            if (requestId != null) {
+                respond(requestId, "OK");
+            }
 
         } else {
             Logger.error("Incorrect command format: " + rawCommand);
@@ -120,22 +383,134 @@ public class ClientHandler extends Thread {
     }
 
     /**
-     * Sends a message to the client to update the list of nodes.
+     * Check whether the client wants new sensor values pushed to it.
+     *
+     * @return True when the client has sent the subscribeSensors command
+     */
+    public boolean isSubscribedToSensors() {
+        return subscribedToSensors;
+    }
+
+    /**
+     * Sends a message shared by many clients, using the line or frame already encrypted for
+     * the kind of encryption this client uses.
+     *
+     * @param broadcast The shared message
+     */
+    public synchronized void sendBroadcast(EncryptedBroadcast broadcast) {
+        byte[] line;
+        if (binaryFrames) {
+            line = broadcast.getGroupFrame();
+        } else {
+            line = sessionCipher != null ? broadcast.getGroupLine() : broadcast.getRsaLine();
+        }
+        if (line != null) {
+            enqueue(line, broadcast.getMergeKey());
+        }
+    }
+
+    /**
+     * Encrypts a message and sends it to the client, with the session key when there is one.
+     *
+     * @param message The plain text message
+     */
+    protected void send(String message) {
+        send(message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encrypts an already encoded message and sends it to the client, with the session key
+     * when there is one, in a text frame when the client uses binary frames.
+     *
+     * @param message The plain text message, encoded as UTF-8. Not modified.
+     */
+    protected synchronized void send(byte[] message) {
+        SessionCipher cipher = sessionCipher;
+        byte[] line;
+        if (binaryFrames) {
+            line = cipher.encryptToFrame(BinaryFrames.text(message), BinaryFrames.SESSION_KEY);
+        } else if (cipher != null) {
+            line = cipher.encryptToLine(message);
+        } else {
+            String encrypted = EncrypterDecrypter.encryptMessage(
+                    new String(message, StandardCharsets.UTF_8));
+            line = encrypted != null ? (encrypted + "\n").getBytes(StandardCharsets.ISO_8859_1) : null;
+        }
+        if (line != null) {
+            enqueue(line, OutboundQueue.NO_MERGE_KEY);
+        }
+    }
+
+    /**
+     * Encrypts the body of a binary frame with the session key and sends it to the client.
+     * Only for clients using binary frames.
+     *
+     * @param body The frame body, starting with the opcode
+     */
+    private synchronized void sendFrame(byte[] body) {
+        byte[] frame = sessionCipher.encryptToFrame(body, BinaryFrames.SESSION_KEY);
+        if (frame != null) {
+            enqueue(frame, OutboundQueue.NO_MERGE_KEY);
+        }
+    }
+
+    /**
+     * Queues one encrypted line for the transport to write. Never blocks, so a client which
+     * reads slowly never holds up the thread sending to it. Disconnects the client when the
+     * slow consumer policy says so. A line or frame longer than the client accepts is dropped
+     * instead, as the client would disconnect on it.
+     *
+     * @param line     The encoded line, including the line terminator. Must not be modified.
+     * @param mergeKey The node ID of a sensor update, otherwise {@link OutboundQueue#NO_MERGE_KEY}
      */
-    public void updateNodes() {
-        writer.println(EncrypterDecrypter.encryptMessage("updateNodes"));
+    private void enqueue(byte[] line, int mergeKey) {
+        int maxLength = binaryFrames
+                ? BinaryFrames.MAX_FRAME_LENGTH + BinaryFrames.HEADER_LENGTH - 1
+                : EncrypterDecrypter.MAX_LINE_LENGTH + 1;
+        if (line.length > maxLength) {
+            Logger.error("Message of " + line.length + " bytes is too long to send, dropping it");
+            return;
+        }
+        if (outbound.offer(line, mergeKey)) {
+            onQueued();
+        } else {
+            Logger.error("Client is too slow, its outbound queue is full. Disconnecting.");
+            outbound.close();
+            closeConnection();
+        }
     }
 
     /**
-     * Sends a message to the client to update the actuator states.
+     * Called after a line has been queued, to make the transport write it. Implementations
+     * must be safe to call from any thread, since broadcasts are sent from the thread that
+     * caused the change.
+     */
+    protected abstract void onQueued();
+
+    /**
+     * Closes the connection of a client which is too slow. Must not call
+     * {@link #onDisconnected(String)} on the calling thread, which may be in the middle of a
+     * broadcast to all clients, but leave that to the transport thread.
+     */
+    protected abstract void closeConnection();
+
+    /**
+     * Get the queue of lines waiting to be written to the client.
      *
-     * @param actuatorId The id of the actuator
-     * @param nodeId    The id of the node
-     * @param isOn     The state of the actuator
+     * @return The outbound queue
      */
-    public void updateActuatorStates(int actuatorId,int nodeId,boolean isOn) {
-        String state = isOn ? "OFF" : "ON";
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
 
-        writer.println(EncrypterDecrypter.encryptMessage("updateActuatorStates:" + actuatorId + "," + nodeId + "," + state));
+    /**
+     * Must be called by the subclass once the connection is gone.
+     *
+     * @param clientAddress The address of the client, used for logging
+     */
+    protected void onDisconnected(String clientAddress) {
+        Logger.info("Client at " + clientAddress + " has disconnected.");
+        outbound.close();
+        simulator.removeDisconnectedClient(this);
     }
 }
@@ -0,0 +1,71 @@
+package no.ntnu.endclients;
+
+import java.util.Arrays;
+
+/**
+ * The connected clients of the greenhouse. Made for iterating over all the clients on every
+ * broadcast, while clients connect and disconnect rarely: the clients are kept in an array
+ * which is replaced, never modified, when a client is added or removed. Iterating is then just
+ * reading the current array, without any locking or copying, and is never disturbed by clients
+ * connecting or disconnecting meanwhile.
+ */
+public class ClientRegistry {
+    private static final ClientHandler[] NO_CLIENTS = new ClientHandler[0];
+
+    private volatile ClientHandler[] clients = NO_CLIENTS;
+
+    /**
+     * Add a client. Adding a client which is already registered does nothing.
+     *
+     * @param client The client to add
+     */
+    public synchronized void add(ClientHandler client) {
+        ClientHandler[] current = clients;
+        for (ClientHandler registered : current) {
+            if (registered == client) {
+                return;
+            }
+        }
+        ClientHandler[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = client;
+        clients = updated;
+    }
+
+    /**
+     * Remove a client. Removing a client which is not registered does nothing.
+     *
+     * @param client The client to remove
+     * @return True when the client was registered
+     */
+    public synchronized boolean remove(ClientHandler client) {
+        ClientHandler[] current = clients;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == client) {
+                ClientHandler[] updated = new ClientHandler[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                clients = updated;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the clients connected right now. The array is shared, it must not be modified.
+     *
+     * @return The connected clients
+     */
+    public ClientHandler[] snapshot() {
+        return clients;
+    }
+
+    /**
+     * Get the number of connected clients.
+     *
+     * @return The number of clients
+     */
+    public int size() {
+        return clients.length;
+    }
+}
@@ -0,0 +1,195 @@
+package no.ntnu.endclients;
+
+import no.ntnu.tools.BinaryFrames;
+import no.ntnu.tools.EncrypterDecrypter;
+import no.ntnu.tools.SessionCipher;
+
+import java.nio.charset.StandardCharsets;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * One message sent to many clients, encrypted at most once per kind of client instead of once
+ * per client. Clients with a session get the message encrypted with the broadcast key, as a
+ * text line or as a binary frame depending on what they negotiated, and clients without one get
+ * the line encrypted with RSA, which uses the same key pair for everybody. A broadcast may give
+ * clients without a session other messages than the text line, for messages they do not know.
+ * Each form is only built and encrypted when the first client needing it asks for it, and is
+ * shared by all the clients, so it must never be modified.
+ */
+public class EncryptedBroadcast {
+    private final Supplier<byte[]> message;
+    private final Supplier<byte[]> frameBody;
+    private final Supplier<List<String>> rsaMessages;
+    private final SessionCipher groupCipher;
+    private final int mergeKey;
+    private byte[] plainText;
+    private byte[] groupLine;
+    private byte[] groupFrame;
+    private byte[] rsaLine;
+
+    /**
+     * Create a broadcast message.
+     *
+     * @param message     The plain text message, encoded as UTF-8
+     * @param groupCipher The cipher of the broadcast key
+     */
+    public EncryptedBroadcast(byte[] message, SessionCipher groupCipher) {
+        this(() -> message, null, OutboundQueue.NO_MERGE_KEY, groupCipher);
+    }
+
+    /**
+     * Create a broadcast message.
+     *
+     * @param message     The plain text message
+     * @param groupCipher The cipher of the broadcast key
+     */
+    public EncryptedBroadcast(String message, SessionCipher groupCipher) {
+        this(message.getBytes(StandardCharsets.UTF_8), groupCipher);
+    }
+
+    /**
+     * Create a broadcast message with its own binary form, which a newer message with the same
+     * merge key makes obsolete. Both forms are built on demand.
+     *
+     * @param message     Builds the plain text message, encoded as UTF-8
+     * @param frameBody   Builds the body of the binary frame, or null to send the text message in
+     *                    a {@link BinaryFrames#TEXT} frame
+     * @param mergeKey    The node ID of a sensor update, see {@link OutboundQueue}
+     * @param groupCipher The cipher of the broadcast key
+     */
+    public EncryptedBroadcast(Supplier<byte[]> message, Supplier<byte[]> frameBody, int mergeKey,
+                              SessionCipher groupCipher) {
+        this(message, frameBody, null, mergeKey, groupCipher);
+    }
+
+    /**
+     * Create a broadcast message with its own binary form, and its own messages for clients
+     * without a session. All forms are built on demand.
+     *
+     * @param message     Builds the plain text message, encoded as UTF-8
+     * @param frameBody   Builds the body of the binary frame, or null to send the text message in
+     *                    a {@link BinaryFrames#TEXT} frame
+     * @param rsaMessages Builds the messages sent, one RSA encrypted line each, to clients
+     *                    without a session instead of the text message, or null to send them the
+     *                    text message
+     * @param mergeKey    The node ID of a sensor update, see {@link OutboundQueue}
+     * @param groupCipher The cipher of the broadcast key
+     */
+    public EncryptedBroadcast(Supplier<byte[]> message, Supplier<byte[]> frameBody,
+                              Supplier<List<String>> rsaMessages, int mergeKey,
+                              SessionCipher groupCipher) {
+        this.message = message;
+        this.frameBody = frameBody;
+        this.rsaMessages = rsaMessages;
+        this.mergeKey = mergeKey;
+        this.groupCipher = groupCipher;
+    }
+
+    /**
+     * Get the merge key of the message.
+     *
+     * @return The node ID of a sensor update, otherwise {@link OutboundQueue#NO_MERGE_KEY}
+     */
+    public int getMergeKey() {
+        return mergeKey;
+    }
+
+    /**
+     * Get the plain text message, building it the first time.
+     *
+     * @return The message, encoded as UTF-8
+     */
+    private byte[] getPlainText() {
+        if (plainText == null) {
+            plainText = message.get();
+        }
+        return plainText;
+    }
+
+    /**
+     * Get the line for clients with a session: the marker followed by the message encrypted with
+     * the broadcast key.
+     *
+     * @return The line, including the line terminator, or null if encryption failed
+     */
+    public synchronized byte[] getGroupLine() {
+        if (groupLine == null) {
+            byte[] line = groupCipher.encryptToLine(getPlainText());
+            if (line != null) {
+                groupLine = new byte[line.length + 1];
+                groupLine[0] = (byte) EncrypterDecrypter.GROUP_LINE_MARKER;
+                System.arraycopy(line, 0, groupLine, 1, line.length);
+            }
+        }
+        return groupLine;
+    }
+
+    /**
+     * Get the frame for clients with a session using binary frames, encrypted with the
+     * broadcast key.
+     *
+     * @return The frame, or null if encryption failed
+     */
+    public synchronized byte[] getGroupFrame() {
+        if (groupFrame == null) {
+            byte[] body = frameBody != null ? frameBody.get() : BinaryFrames.text(getPlainText());
+            groupFrame = groupCipher.encryptToFrame(body, BinaryFrames.GROUP_KEY);
+        }
+        return groupFrame;
+    }
+
+    /**
+     * Get the line for clients without a session, encrypted with RSA. When the broadcast has its
+     * own messages for these clients, these are all the lines, one per message.
+     *
+     * @return The lines, including the line terminators, or null if encryption failed
+     */
+    public synchronized byte[] getRsaLine() {
+        if (rsaLine == null) {
+            if (rsaMessages != null) {
+                rsaLine = encryptRsaLines(rsaMessages.get());
+            } else {
+                rsaLine = encryptRsaLine(new String(getPlainText(), StandardCharsets.UTF_8));
+            }
+        }
+        return rsaLine;
+    }
+
+    /**
+     * Encrypt a message with RSA, as one line.
+     *
+     * @param message The plain text message
+     * @return The line, including the line terminator, or null if encryption failed
+     */
+    private static byte[] encryptRsaLine(String message) {
+        String encrypted = EncrypterDecrypter.encryptMessage(message);
+        if (encrypted == null) {
+            return null;
+        }
+        byte[] encoded = encrypted.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] line = Arrays.copyOf(encoded, encoded.length + 1);
+        line[encoded.length] = '\n';
+        return line;
+    }
+
+    /**
+     * Encrypt many messages with RSA, one line each. Messages which can not be encrypted are
+     * left out.
+     *
+     * @param messages The plain text messages
+     * @return The lines, including the line terminators, or null if none could be encrypted
+     */
+    private static byte[] encryptRsaLines(List<String> messages) {
+        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        for (String message : messages) {
+            byte[] line = encryptRsaLine(message);
+            if (line != null) {
+                lines.writeBytes(line);
+            }
+        }
+        return lines.size() > 0 ? lines.toByteArray() : null;
+    }
+}
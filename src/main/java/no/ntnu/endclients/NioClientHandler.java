@@ -0,0 +1,245 @@
+package no.ntnu.endclients;
+
+import no.ntnu.greenhouse.GreenhouseSimulator;
+import no.ntnu.tools.BinaryFrames;
+import no.ntnu.tools.EncrypterDecrypter;
+import no.ntnu.tools.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+
+/**
+ * Handles one connected client on a non-blocking channel. All reads and writes happen on the
+ * I/O thread owning the selection key, other threads only queue outgoing lines in the
+ * outbound queue, which is drained whenever the channel accepts more data.
+ * Used by the {@link NioServer}.
+ */
+
+public class NioClientHandler extends ClientHandler {
+
+    private final SocketChannel channel;
+    private final String clientAddress;
+    private SelectionKey key;
+    private ByteBuffer pendingWrite;
+    private volatile boolean closeRequested;
+
+    private byte[] lineBuffer = new byte[256];
+    private int lineLength;
+    // Length of the binary frame being received, -1 while its header is being received
+    private int frameLength = -1;
+
+
+    /**
+     * Creates a new instance of the NioClientHandler class.
+     *
+     * @param channel   The accepted channel, must be in non-blocking mode
+     * @param simulator The greenhouse simulator associated with this client handler
+     * @throws IOException If the remote address of the channel can not be read
+     */
+    public NioClientHandler(SocketChannel channel, GreenhouseSimulator simulator)
+            throws IOException {
+        super(simulator);
+        this.channel = channel;
+        this.clientAddress = String.valueOf(channel.getRemoteAddress());
+    }
+
+    /**
+     * Set the selection key of this client, once it is registered with a selector.
+     *
+     * @param key The selection key
+     */
+    void setKey(SelectionKey key) {
+        this.key = key;
+        if (!outbound.isEmpty() || closeRequested) {
+            requestWrite();
+        }
+    }
+
+    /**
+     * Read whatever is available on the channel and handle all complete lines or frames.
+     *
+     * @param buffer A buffer to read into, shared by all the clients of one I/O thread
+     */
+    void onReadable(ByteBuffer buffer) {
+        try {
+            int read;
+            do {
+                buffer.clear();
+                read = channel.read(buffer);
+                buffer.flip();
+                consumeLines(buffer);
+            } while (read > 0 && key.isValid());
+            if (read < 0) {
+                close();
+            }
+        } catch (IOException e) {
+            Logger.error("while reading from the socket: " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Split the received bytes into lines, or into frames once the client has switched to
+     * binary frames. Partial lines and frames are kept until the rest arrives.
+     *
+     * @param buffer The received bytes
+     */
+    private void consumeLines(ByteBuffer buffer) {
+        while (buffer.hasRemaining() && key.isValid()) {
+            if (isBinary()) {
+                consumeFrame(buffer);
+                continue;
+            }
+            byte b = buffer.get();
+            if (b == '\n') {
+                int length = lineLength;
+                if (length > 0 && lineBuffer[length - 1] == '\r') {
+                    length--;
+                }
+                lineLength = 0;
+                handleMessage(lineBuffer, 0, length);
+            } else {
+                appendToLine(b);
+            }
+        }
+    }
+
+    /**
+     * Consume received bytes of the frame currently being received, and handle the frame
+     * when it is complete. The line buffer holds the header and then the frame.
+     *
+     * @param buffer The received bytes
+     */
+    private void consumeFrame(ByteBuffer buffer) {
+        if (frameLength < 0) {
+            lineBuffer[lineLength++] = buffer.get();
+            if (lineLength == 4) {
+                lineLength = 0;
+                try {
+                    frameLength = BinaryFrames.readLength(lineBuffer, 0);
+                } catch (IllegalArgumentException e) {
+                    Logger.error("Frame from " + clientAddress + " is invalid: " + e.getMessage());
+                    close();
+                    return;
+                }
+                if (lineBuffer.length < frameLength) {
+                    lineBuffer = new byte[frameLength];
+                }
+            }
+            return;
+        }
+        int count = Math.min(buffer.remaining(), frameLength - lineLength);
+        buffer.get(lineBuffer, lineLength, count);
+        lineLength += count;
+        if (lineLength == frameLength) {
+            int length = lineLength;
+            lineLength = 0;
+            frameLength = -1;
+            handleFrame(lineBuffer, 0, length);
+        }
+    }
+
+    /**
+     * Append a byte to the line currently being received.
+     *
+     * @param b The byte to append
+     */
+    private void appendToLine(byte b) {
+        if (lineLength == lineBuffer.length) {
+            if (lineBuffer.length >= EncrypterDecrypter.MAX_LINE_LENGTH) {
+                Logger.error("Line from " + clientAddress + " is too long, disconnecting");
+                close();
+                return;
+            }
+            lineBuffer = Arrays.copyOf(lineBuffer, lineBuffer.length * 2);
+        }
+        lineBuffer[lineLength++] = b;
+    }
+
+    /**
+     * Write as much of the queued output as the channel accepts.
+     */
+    void onWritable() {
+        if (closeRequested) {
+            close();
+            return;
+        }
+        try {
+            while (true) {
+                if (pendingWrite == null) {
+                    byte[] line = outbound.poll();
+                    if (line == null) {
+                        break;
+                    }
+                    pendingWrite = ByteBuffer.wrap(line);
+                }
+                channel.write(pendingWrite);
+                if (pendingWrite.hasRemaining()) {
+                    return;
+                }
+                pendingWrite = null;
+            }
+            key.interestOpsAnd(~SelectionKey.OP_WRITE);
+            // A line may have been queued after the loop found the queue empty
+            if (!outbound.isEmpty() || closeRequested) {
+                key.interestOpsOr(SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            Logger.error("while writing to the socket: " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Ask the I/O thread to write the line just queued.
+     */
+    @Override
+    protected void onQueued() {
+        if (key != null) {
+            requestWrite();
+        }
+    }
+
+    /**
+     * Ask the I/O thread to close the channel, the next time it handles this client.
+     */
+    @Override
+    protected void closeConnection() {
+        closeRequested = true;
+        if (key != null) {
+            requestWrite();
+        }
+    }
+
+    /**
+     * Ask the I/O thread to write the queued lines as soon as possible.
+     */
+    private void requestWrite() {
+        if (key.isValid()) {
+            key.interestOpsOr(SelectionKey.OP_WRITE);
+            key.selector().wakeup();
+        }
+    }
+
+    /**
+     * Close the channel and forget the client.
+     */
+    void close() {
+        if (key != null && !key.isValid()) {
+            return;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Logger.error("Could not close connection: " + e.getMessage());
+        }
+        onDisconnected(clientAddress);
+    }
+}
@@ -0,0 +1,287 @@
+package no.ntnu.endclients;
+
+import no.ntnu.greenhouse.GreenhouseSimulator;
+import no.ntnu.tools.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * A non-blocking server. One acceptor thread hands the accepted channels round-robin to a small
+ * fixed pool of I/O threads, each multiplexing its clients over its own selector. The line
+ * protocol is the same as for the threaded server.
+ */
+public class NioServer {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * How long stopping the server waits for each I/O thread to close its clients.
+     */
+    private static final long STOP_TIMEOUT = 1000;
+
+    private final GreenhouseSimulator simulator;
+    private final int port;
+    private final IoWorker[] workers;
+    private final Thread[] workerThreads;
+    private ServerSocketChannel serverChannel;
+    private Selector acceptSelector;
+    private volatile boolean running;
+    private int nextWorker;
+
+    /**
+     * Create a non-blocking server.
+     *
+     * @param simulator The greenhouse simulator which handles the commands
+     * @param port      The port number to listen on
+     * @param ioThreads The number of I/O threads serving the clients
+     */
+    public NioServer(GreenhouseSimulator simulator, int port, int ioThreads) {
+        if (ioThreads <= 0) {
+            throw new IllegalArgumentException("At least one I/O thread is needed");
+        }
+        this.simulator = simulator;
+        this.port = port;
+        this.workers = new IoWorker[ioThreads];
+        this.workerThreads = new Thread[ioThreads];
+    }
+
+    /**
+     * Open the listening channel and start the acceptor and the I/O threads.
+     *
+     * @throws IOException If the server could not be started
+     */
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+        running = true;
+
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new IoWorker(Selector.open());
+            Thread thread = new Thread(workers[i], "nio-io-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            workerThreads[i] = thread;
+        }
+        Thread acceptor = new Thread(this::acceptLoop, "nio-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Logger.info("Server is now listening on port " + port + " with "
+                + workers.length + " I/O threads");
+    }
+
+    /**
+     * Stop accepting clients, disconnect all the connected clients and close all the selectors.
+     * Each I/O thread closes its own clients, and is given a moment to do so.
+     */
+    public void stop() {
+        running = false;
+        try {
+            if (acceptSelector != null) {
+                acceptSelector.close();
+            }
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            Logger.error("An error occurred while stopping communication");
+        }
+        for (IoWorker worker : workers) {
+            if (worker != null) {
+                worker.stop();
+            }
+        }
+        for (Thread thread : workerThreads) {
+            if (thread != null) {
+                try {
+                    thread.join(STOP_TIMEOUT);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        Logger.info("TCP connection successfully closed");
+    }
+
+    /**
+     * Accept new clients until the server is stopped.
+     */
+    private void acceptLoop() {
+        try {
+            while (running) {
+                acceptSelector.select();
+                Iterator<SelectionKey> keys = acceptSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    keys.next();
+                    keys.remove();
+                    acceptPendingClients();
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                Logger.error("Could not accept client connection: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Accept all the clients waiting on the listening channel. A client which fails while being
+     * set up, for example because it has already reset the connection, is dropped, and the
+     * others are still accepted.
+     *
+     * @throws IOException If the listening channel fails
+     */
+    private void acceptPendingClients() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            try {
+                acceptClient(channel);
+            } catch (IOException e) {
+                Logger.error("Could not set up client connection: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException closeError) {
+                    Logger.error("Could not close connection: " + closeError.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Set up an accepted client and hand it over to the next I/O thread.
+     *
+     * @param channel The channel of the client
+     * @throws IOException If the channel of the client fails
+     */
+    private void acceptClient(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        NioClientHandler clientHandler = new NioClientHandler(channel, simulator);
+        Logger.info("New client connected from " + channel.getRemoteAddress());
+        simulator.addClientToConnectedClients(clientHandler);
+        workers[nextWorker].register(clientHandler, channel);
+        nextWorker = (nextWorker + 1) % workers.length;
+    }
+
+    /**
+     * One I/O thread, serving the clients registered with its selector.
+     */
+    private static class IoWorker implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private volatile boolean stopping;
+
+        IoWorker(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Ask this I/O thread to disconnect its clients and end.
+         */
+        void stop() {
+            stopping = true;
+            selector.wakeup();
+        }
+
+        /**
+         * Hand a new client over to this I/O thread.
+         *
+         * @param clientHandler The handler of the client
+         * @param channel       The channel of the client
+         */
+        void register(NioClientHandler clientHandler, SocketChannel channel) {
+            pendingRegistrations.add(() -> {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ, clientHandler);
+                    clientHandler.setKey(key);
+                } catch (IOException e) {
+                    Logger.error("Could not register client: " + e.getMessage());
+                    clientHandler.close();
+                }
+            });
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopping) {
+                    selector.select();
+                    Runnable registration;
+                    while ((registration = pendingRegistrations.poll()) != null) {
+                        registration.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handleKey(key);
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (selector.isOpen()) {
+                    Logger.error("I/O thread stopped: " + e.getMessage());
+                }
+            }
+            closeAllClients();
+        }
+
+        /**
+         * Disconnect all the clients of this I/O thread, including the ones handed over but not
+         * registered yet, and close the selector.
+         */
+        private void closeAllClients() {
+            Runnable registration;
+            while ((registration = pendingRegistrations.poll()) != null) {
+                registration.run();
+            }
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    ((NioClientHandler) key.attachment()).close();
+                }
+            } catch (ClosedSelectorException e) {
+                // Nothing left to close
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Logger.error("Could not close selector: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Serve one client which is ready for reading or writing.
+         *
+         * @param key The selection key of the client
+         */
+        private void handleKey(SelectionKey key) {
+            NioClientHandler clientHandler = (NioClientHandler) key.attachment();
+            try {
+                if (key.isValid() && key.isReadable()) {
+                    clientHandler.onReadable(readBuffer);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    clientHandler.onWritable();
+                }
+            } catch (RuntimeException e) {
+                // A broken client must not take the other clients of this thread down with it
+                Logger.error("Error while serving a client: " + e.getMessage());
+                clientHandler.close();
+            }
+        }
+    }
+}
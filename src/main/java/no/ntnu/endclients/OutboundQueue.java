@@ -0,0 +1,218 @@
+package no.ntnu.endclients;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The bounded queue of encrypted lines, or binary frames, waiting to be written to one client.
+ * Any thread can queue a line without ever blocking, the transport of the client drains the
+ * queue at the speed the client reads. When the client falls so far behind that the queue is full, the
+ * {@link SlowConsumerPolicy} decides what happens.
+ * Sensor updates are queued with the ID of their node as merge key, or
+ * {@link #ALL_NODES_MERGE_KEY} when they hold all the nodes, all other lines with
+ * {@link #NO_MERGE_KEY}, and only lines with a merge key are ever dropped or merged.
+ */
+public class OutboundQueue {
+
+    /**
+     * The merge key of lines which must never be dropped or merged.
+     */
+    public static final int NO_MERGE_KEY = -1;
+
+    /**
+     * The merge key of sensor updates holding all the nodes of a greenhouse step. Node IDs
+     * start at 1, so it is never the key of a single node.
+     */
+    public static final int ALL_NODES_MERGE_KEY = 0;
+
+    private static final LongAdder totalDropped = new LongAdder();
+    private static final LongAdder totalMerged = new LongAdder();
+    private static final LongAdder totalOverflows = new LongAdder();
+
+    private final int capacity;
+    private final SlowConsumerPolicy policy;
+    private final Deque<Entry> entries = new ArrayDeque<>();
+    private int maxDepth;
+    private boolean closed;
+
+    /**
+     * One queued line.
+     */
+    private static class Entry {
+        private byte[] line;
+        private final int mergeKey;
+
+        Entry(byte[] line, int mergeKey) {
+            this.line = line;
+            this.mergeKey = mergeKey;
+        }
+    }
+
+    /**
+     * Create an outbound queue.
+     *
+     * @param capacity The largest number of lines queued at the same time
+     * @param policy   What to do when the queue is full
+     */
+    public OutboundQueue(int capacity, SlowConsumerPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Queue a line. Never blocks.
+     *
+     * @param line     The encrypted line, including the line terminator. Not modified.
+     * @param mergeKey The node ID of a sensor update, otherwise {@link #NO_MERGE_KEY}
+     * @return False when the queue is full and the client must be disconnected
+     */
+    public synchronized boolean offer(byte[] line, int mergeKey) {
+        if (closed) {
+            return true;
+        }
+        if (mergeKey != NO_MERGE_KEY && policy == SlowConsumerPolicy.MERGE && merge(line, mergeKey)) {
+            return true;
+        }
+        if (entries.size() >= capacity) {
+            totalOverflows.increment();
+            if (policy == SlowConsumerPolicy.DISCONNECT) {
+                return false;
+            }
+            if (!dropOldestSensorUpdate()) {
+                if (mergeKey == NO_MERGE_KEY) {
+                    return false;
+                }
+                // Only lines which can not be dropped are queued, drop the new sensor update
+                totalDropped.increment();
+                return true;
+            }
+        }
+        entries.addLast(new Entry(line, mergeKey));
+        maxDepth = Math.max(maxDepth, entries.size());
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Replace a queued sensor update of the same node with a newer one.
+     *
+     * @param line     The newer sensor update
+     * @param mergeKey The node ID
+     * @return True when a queued update was replaced
+     */
+    private boolean merge(byte[] line, int mergeKey) {
+        for (Entry entry : entries) {
+            if (entry.mergeKey == mergeKey) {
+                entry.line = line;
+                totalMerged.increment();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove the oldest queued sensor update.
+     *
+     * @return True when one was removed, false when there was none
+     */
+    private boolean dropOldestSensorUpdate() {
+        Iterator<Entry> iterator = entries.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().mergeKey != NO_MERGE_KEY) {
+                iterator.remove();
+                totalDropped.increment();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Take the next line, without waiting.
+     *
+     * @return The line, or null if the queue is empty
+     */
+    public synchronized byte[] poll() {
+        Entry entry = entries.pollFirst();
+        return entry != null ? entry.line : null;
+    }
+
+    /**
+     * Take the next line, waiting until there is one.
+     *
+     * @return The line, or null once the queue is closed
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public synchronized byte[] take() throws InterruptedException {
+        while (entries.isEmpty() && !closed) {
+            wait();
+        }
+        return closed ? null : entries.pollFirst().line;
+    }
+
+    /**
+     * Check whether there is nothing left to write.
+     *
+     * @return True when the queue is empty
+     */
+    public synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Get the number of lines waiting to be written.
+     *
+     * @return The queue depth
+     */
+    public synchronized int getDepth() {
+        return entries.size();
+    }
+
+    /**
+     * Get the largest number of lines which have been waiting at the same time.
+     *
+     * @return The largest queue depth so far
+     */
+    public synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Discard everything queued and stop accepting lines, once the client is gone.
+     */
+    public synchronized void close() {
+        closed = true;
+        entries.clear();
+        notifyAll();
+    }
+
+    /**
+     * Get the number of sensor updates dropped by all the queues.
+     *
+     * @return The number of dropped lines
+     */
+    public static long getTotalDropped() {
+        return totalDropped.sum();
+    }
+
+    /**
+     * Get the number of sensor updates merged into an older one by all the queues.
+     *
+     * @return The number of merged lines
+     */
+    public static long getTotalMerged() {
+        return totalMerged.sum();
+    }
+
+    /**
+     * Get the number of times a line was offered to a full queue.
+     *
+     * @return The number of overflows
+     */
+    public static long getTotalOverflows() {
+        return totalOverflows.sum();
+    }
+}
@@ -0,0 +1,54 @@
+package no.ntnu.endclients;
+
+/**
+ * What to do when a client does not read its messages as fast as they are produced, and its
+ * outbound queue is full. Messages other than sensor updates are never dropped; when there is
+ * no sensor update left to drop or merge, the client is disconnected.
+ */
+public enum SlowConsumerPolicy {
+    /**
+     * Drop the oldest queued sensor update to make room. The client misses some readings,
+     * but every node keeps getting newer ones.
+     */
+    DROP_OLDEST_SENSOR,
+
+    /**
+     * Replace a queued sensor update of the same node with the new one, since the new one
+     * makes it obsolete. Only drops the oldest sensor update when no update of that node
+     * is queued.
+     */
+    MERGE,
+
+    /**
+     * Disconnect the client, which can connect again and get a fresh state.
+     */
+    DISCONNECT;
+
+    /**
+     * The prefix of the command line argument choosing the policy.
+     */
+    private static final String ARGUMENT_PREFIX = "slowConsumer=";
+
+    /**
+     * Find the slow consumer policy given as a command line argument.
+     *
+     * @param args The command line arguments
+     * @return The policy of a "slowConsumer=drop|merge|disconnect" argument,
+     *         DROP_OLDEST_SENSOR when there is none
+     */
+    public static SlowConsumerPolicy fromArgs(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith(ARGUMENT_PREFIX)) {
+                switch (arg.substring(ARGUMENT_PREFIX.length())) {
+                    case "merge":
+                        return MERGE;
+                    case "disconnect":
+                        return DISCONNECT;
+                    default:
+                        return DROP_OLDEST_SENSOR;
+                }
+            }
+        }
+        return DROP_OLDEST_SENSOR;
+    }
+}
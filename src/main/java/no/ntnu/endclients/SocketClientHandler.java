@@ -0,0 +1,161 @@
+package no.ntnu.endclients;
+
+import no.ntnu.greenhouse.GreenhouseSimulator;
+import no.ntnu.tools.BinaryFrames;
+import no.ntnu.tools.EncrypterDecrypter;
+import no.ntnu.tools.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+
+
+/**
+ * Handles each connected Client in a separate thread, blocking on the socket. Each client also
+ * has a writer thread draining its outbound queue, so writing to a slow client never blocks
+ * anybody else. Used by the {@link no.ntnu.greenhouse.ServerMode#THREADED} server.
+ */
+
+public class SocketClientHandler extends ClientHandler implements Runnable {
+
+    protected Socket socket;
+    private DataInputStream reader;
+    private OutputStream writer;
+    private byte[] lineBuffer = new byte[256];
+    private byte[] frameBuffer;
+
+
+    /**
+     * Creates a new instance of the SocketClientHandler class.
+     *
+     * @param socket    The socket representing the client connection
+     * @param simulator The greenhouse simulator associated with this client handler
+     */
+    public SocketClientHandler(Socket socket, GreenhouseSimulator simulator) {
+        super(simulator);
+        this.socket = socket;
+        try {
+            reader = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            writer = new BufferedOutputStream(socket.getOutputStream());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs the client handler thread, continuously reading messages from the client, as lines
+     * or as binary frames once the client has switched to them.
+     * Handles the incoming commands and responds accordingly.
+     */
+    @Override
+    public void run() {
+        try {
+            System.out.println("Client on port: " + socket.getPort() + " is connected");
+            Thread writerThread = new Thread(this::writeLines, "client-writer-" + socket.getPort());
+            writerThread.setDaemon(true);
+            writerThread.start();
+            boolean connected;
+            do {
+                connected = isBinary() ? readFrame() : readLine();
+            } while (connected);
+        } catch (IOException | IllegalArgumentException e) {
+            Logger.error("while reading from the socket: " + e.getMessage());
+            e.printStackTrace();
+        }
+        onDisconnected(socket.getRemoteSocketAddress().toString());
+    }
+
+    /**
+     * Reads one line from the client and handles it. The line is read byte by byte from the
+     * buffered stream, so nothing after it is consumed when the client switches to frames.
+     *
+     * @return False when the client has closed the connection
+     * @throws IOException If reading fails or the line is too long
+     */
+    private boolean readLine() throws IOException {
+        int length = 0;
+        int b;
+        while ((b = reader.read()) != '\n') {
+            if (b < 0) {
+                return false;
+            }
+            if (length == lineBuffer.length) {
+                if (lineBuffer.length >= EncrypterDecrypter.MAX_LINE_LENGTH) {
+                    throw new IOException("Line is too long");
+                }
+                lineBuffer = Arrays.copyOf(lineBuffer, lineBuffer.length * 2);
+            }
+            lineBuffer[length++] = (byte) b;
+        }
+        if (length > 0 && lineBuffer[length - 1] == '\r') {
+            length--;
+        }
+        handleMessage(lineBuffer, 0, length);
+        return true;
+    }
+
+    /**
+     * Reads one binary frame from the client and handles it.
+     *
+     * @return False when the client has closed the connection
+     * @throws IOException If reading fails before the end of the frame
+     */
+    private boolean readFrame() throws IOException {
+        int first = reader.read();
+        if (first < 0) {
+            return false;
+        }
+        byte[] header = {(byte) first, reader.readByte(), reader.readByte(), reader.readByte()};
+        int length = BinaryFrames.readLength(header, 0);
+        if (frameBuffer == null || frameBuffer.length < length) {
+            frameBuffer = new byte[Math.max(length, 1024)];
+        }
+        reader.readFully(frameBuffer, 0, length);
+        handleFrame(frameBuffer, 0, length);
+        return true;
+    }
+
+    /**
+     * Writes the queued lines to the socket until the client is gone. Several lines waiting
+     * at once are written with one flush.
+     */
+    private void writeLines() {
+        try {
+            byte[] line;
+            while ((line = outbound.take()) != null) {
+                writer.write(line);
+                if (outbound.isEmpty()) {
+                    writer.flush();
+                }
+            }
+        } catch (IOException e) {
+            Logger.error("while writing to the socket: " + e.getMessage());
+            closeConnection();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Nothing to do, the writer thread wakes up by itself when a line is queued.
+     */
+    @Override
+    protected void onQueued() {
+    }
+
+    /**
+     * Closes the socket, which makes the reading thread notice that the client is gone.
+     */
+    @Override
+    protected void closeConnection() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Logger.error("Could not close connection: " + e.getMessage());
+        }
+    }
+}
@@ -1,7 +1,7 @@
 package no.ntnu.greenhouse;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import no.ntnu.listeners.common.ActuatorListener;
 
@@ -10,15 +10,18 @@ import no.ntnu.listeners.common.ActuatorListener;
  * sensors attached to this same node.
  */
 public class Actuator {
-    private static int nextId = 1;
+    private static final AtomicInteger nextId = new AtomicInteger(1);
     private final String type;
+    private final int typeId;
     private final int nodeId;
     private final int id;
-    private Map<String, Double> impacts = new HashMap<>();
+    // The change per hour of the sensors of each type, indexed by the ID of the sensor type
+    private double[] impacts = new double[0];
+    private double airExchange;
 
     private ActuatorListener listener;
 
-    private boolean on;
+    private volatile boolean on;
 
     /**
      * Create an actuator. An ID will be auto-generated.
@@ -28,6 +31,7 @@ public class Actuator {
      */
     public Actuator(String type, int nodeId) {
         this.type = type;
+        this.typeId = DeviceTypeRegistry.idOf(type);
         this.nodeId = nodeId;
         this.on = false;
         this.id = generateUniqueId();
@@ -42,6 +46,7 @@ public class Actuator {
      */
     public Actuator(int id, String type, int nodeId) {
         this.type = type;
+        this.typeId = DeviceTypeRegistry.idOf(type);
         this.nodeId = nodeId;
         this.on = false;
         this.id = id;
@@ -54,7 +59,7 @@ public class Actuator {
      */
 
     private static int generateUniqueId() {
-        return nextId++;
+        return nextId.getAndIncrement();
     }
 
     /**
@@ -70,14 +75,41 @@ public class Actuator {
      * Register the impact of this actuator when active.
      *
      * @param sensorType     Which type of sensor readings will be impacted. Example: "temperature"
-     * @param diffWhenActive What will be the introduced difference in the sensor reading when
-     *                       the actuator is active. For example, if this value is 2.0 and the
-     *                       sensorType is "temperature", this means that "activating this actuator
-     *                       will increase the readings of temperature sensors attached to the
-     *                       same node by +2 degrees".
+     * @param diffWhenActive How much the sensor readings change per hour while the actuator is
+     *                       active. For example, if this value is 2.0 and the sensorType is
+     *                       "temperature", this means that "while this actuator is on, the
+     *                       readings of temperature sensors attached to the same node increase
+     *                       by 2 degrees per hour".
      */
     public void setImpact(String sensorType, double diffWhenActive) {
-        impacts.put(sensorType, diffWhenActive);
+        setImpact(DeviceTypeRegistry.idOf(sensorType), diffWhenActive);
+    }
+
+    /**
+     * Register the impact of this actuator when active.
+     *
+     * @param sensorTypeId   The ID of the type of sensor readings impacted, see
+     *                       {@link DeviceTypeRegistry}
+     * @param diffWhenActive How much the sensor readings change per hour while the actuator is
+     *                       active
+     */
+    public void setImpact(int sensorTypeId, double diffWhenActive) {
+        if (sensorTypeId >= impacts.length) {
+            impacts = Arrays.copyOf(impacts, sensorTypeId + 1);
+        }
+        impacts[sensorTypeId] = diffWhenActive;
+    }
+
+    /**
+     * Register how much outside air this actuator lets in when active. The readings of all the
+     * sensors attached to the same node then move towards their outside values, faster the
+     * further they are from them.
+     *
+     * @param airChangesPerHour How many times per hour the air is replaced while the actuator
+     *                          is active
+     */
+    public void setAirExchange(double airChangesPerHour) {
+        this.airExchange = airChangesPerHour;
     }
 
 
@@ -91,6 +123,15 @@ public class Actuator {
         return type;
     }
 
+    /**
+     * Get the ID of the type of the actuator.
+     *
+     * @return The ID of the type in the {@link DeviceTypeRegistry}
+     */
+    public int getTypeId() {
+        return typeId;
+    }
+
     /**
      * Create a clone of this actuator.
      *
@@ -98,9 +139,10 @@ public class Actuator {
      */
     public Actuator createClone() {
         Actuator a = new Actuator(type, nodeId);
-        // Note - we pass a reference to the same map! This should not be problem, as long as we
+        // Note - we pass a reference to the same array! This should not be problem, as long as we
         // don't modify the impacts AFTER creating the template
         a.impacts = impacts;
+        a.airExchange = airExchange;
         return a;
     }
 
@@ -108,10 +150,28 @@ public class Actuator {
      * Toggle the actuator - if it was off, not it will be ON, and vice versa.
      */
     public void toggle() {
-        this.on = !this.on;
+        synchronized (this) {
+            on = !on;
+        }
         notifyChanges();
     }
 
+    /**
+     * Change the state of the actuator, unless it is in that state already. Checking and
+     * changing is one step, so when several threads turn the actuator on at the same time,
+     * only one of them changes it.
+     *
+     * @param newState True to turn on, false to turn off
+     * @return True when the state changed
+     */
+    private synchronized boolean changeState(boolean newState) {
+        if (on == newState) {
+            return false;
+        }
+        on = newState;
+        return true;
+    }
+
 
     /**
      * Notify the listener that the actuator has changed.
@@ -133,21 +193,27 @@ public class Actuator {
     }
 
     /**
-     * Apply impact of this actuator to all sensors of one specific sensor node.
+     * Add the impact of this actuator to the rates of the sensors of a node, as when it is on.
      *
-     * @param node The sensor node to be affected by this actuator.
+     * @param ratesByType The change per hour of the sensors of each type, indexed by the ID of
+     *                    the sensor type. Types beyond its length are left out.
      */
-    public void applyImpact(SensorActuatorNode node) {
-        for (Map.Entry<String, Double> impactEntry : impacts.entrySet()) {
-            String sensorType = impactEntry.getKey();
-            double impact = impactEntry.getValue();
-            if (!on) {
-                impact = -impact;
-            }
-            node.applyActuatorImpact(sensorType, impact);
+    public void addImpacts(double[] ratesByType) {
+        int count = Math.min(impacts.length, ratesByType.length);
+        for (int sensorTypeId = 0; sensorTypeId < count; sensorTypeId++) {
+            ratesByType[sensorTypeId] += impacts[sensorTypeId];
         }
     }
 
+    /**
+     * Get how much outside air this actuator lets in when active.
+     *
+     * @return The air changes per hour, 0 when it does not let air in
+     */
+    public double getAirExchange() {
+        return airExchange;
+    }
+
 
     /**
      * Returns a string of actuator of type being on or off.
@@ -167,8 +233,7 @@ public class Actuator {
      * Turn on the actuator.
      */
     public void turnOn() {
-        if (!on) {
-            on = true;
+        if (changeState(true)) {
             notifyChanges();
         }
     }
@@ -177,17 +242,14 @@ public class Actuator {
      * Turn on the actuator, without notifying changes.
      */
     public void turnOnDoNotNotify() {
-        if (!on) {
-            on = true;
-        }
+        changeState(true);
     }
 
     /**
      * Turn off the actuator.
      */
     public void turnOff() {
-        if (on) {
-            on = false;
+        if (changeState(false)) {
             notifyChanges();
         }
     }
@@ -196,9 +258,7 @@ public class Actuator {
      * Turn off the actuator, without notifying changes.
      */
     public void turnOffDoNotNotify() {
-        if (on) {
-            on = false;
-        }
+        changeState(false);
     }
 
     /**
@@ -0,0 +1,115 @@
+package no.ntnu.greenhouse;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.function.Consumer;
+
+/**
+ * Collects actuator state changes and broadcasts them as one message, instead of one message
+ * per actuator. Changes are collected for the duration of a bulk operation
+ * (between {@link #beginBulk()} and {@link #endBulk()}), or otherwise for a short window after
+ * the first change. When the same actuator changes several times, only the latest state is sent.
+ */
+public class ActuatorBroadcastCoalescer {
+
+    /**
+     * How long changes outside a bulk operation are collected before they are sent, in
+     * milliseconds.
+     */
+    public static final long WINDOW = 5;
+
+    private final Consumer<List<ActuatorChange>> broadcaster;
+    private final Map<Long, Boolean> pendingStates = new LinkedHashMap<>();
+    private final Timer timer = new Timer("actuator-broadcast", true);
+    private int bulkDepth;
+    private boolean flushScheduled;
+
+    /**
+     * Create a coalescer.
+     *
+     * @param broadcaster Sends the new states as one message to all the connected clients
+     */
+    public ActuatorBroadcastCoalescer(Consumer<List<ActuatorChange>> broadcaster) {
+        this.broadcaster = broadcaster;
+    }
+
+    /**
+     * Start a bulk operation. Nothing is sent until the matching {@link #endBulk()}.
+     * Bulk operations can be nested, the changes are sent when the outermost one ends.
+     */
+    public synchronized void beginBulk() {
+        bulkDepth++;
+    }
+
+    /**
+     * End a bulk operation, and send the collected changes if it was the outermost one.
+     */
+    public synchronized void endBulk() {
+        if (bulkDepth > 0) {
+            bulkDepth--;
+        }
+        if (bulkDepth == 0) {
+            flush();
+        }
+    }
+
+    /**
+     * Record the new state of an actuator.
+     *
+     * @param nodeId     The ID of the node containing the actuator
+     * @param actuatorId The ID of the actuator
+     * @param isOn       True when the actuator is now on
+     */
+    public synchronized void stateChanged(int nodeId, int actuatorId, boolean isOn) {
+        pendingStates.put(((long) nodeId << 32) | (actuatorId & 0xffffffffL), isOn);
+        if (bulkDepth == 0 && !flushScheduled) {
+            flushScheduled = true;
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    flushWindow();
+                }
+            }, WINDOW);
+        }
+    }
+
+    /**
+     * Send the changes collected during a window, unless a bulk operation has started since,
+     * which then sends them when it ends.
+     */
+    private synchronized void flushWindow() {
+        flushScheduled = false;
+        if (bulkDepth == 0) {
+            flush();
+        }
+    }
+
+    /**
+     * Send all the collected changes as one message. Called while holding the lock, so the
+     * messages are sent in the order the changes were made.
+     */
+    private void flush() {
+        if (pendingStates.isEmpty()) {
+            return;
+        }
+        List<ActuatorChange> states = new ArrayList<>(pendingStates.size());
+        for (Map.Entry<Long, Boolean> state : pendingStates.entrySet()) {
+            long key = state.getKey();
+            states.add(new ActuatorChange((int) (key >> 32), (int) key, state.getValue()));
+        }
+        pendingStates.clear();
+        broadcaster.accept(states);
+    }
+
+    /**
+     * Send what is left and stop the window timer.
+     */
+    public synchronized void stop() {
+        flush();
+        timer.cancel();
+    }
+}
@@ -0,0 +1,61 @@
+package no.ntnu.greenhouse;
+
+/**
+ * A requested change of state for one actuator. Used to send many changes to the greenhouse
+ * in one message.
+ */
+public class ActuatorChange {
+    private final int nodeId;
+    private final int actuatorId;
+    private final boolean on;
+
+    /**
+     * Create a new actuator change.
+     *
+     * @param nodeId     ID of the node to which the actuator is attached
+     * @param actuatorId Node-wide unique ID of the actuator
+     * @param on         When true, the actuator must be turned on; off when false
+     */
+    public ActuatorChange(int nodeId, int actuatorId, boolean on) {
+        this.nodeId = nodeId;
+        this.actuatorId = actuatorId;
+        this.on = on;
+    }
+
+    /**
+     * Get the ID of the node to which the actuator is attached.
+     *
+     * @return The node ID
+     */
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Get the ID of the actuator.
+     *
+     * @return The actuator ID
+     */
+    public int getActuatorId() {
+        return actuatorId;
+    }
+
+    /**
+     * Check whether the actuator must be turned on.
+     *
+     * @return True to turn on, false to turn off
+     */
+    public boolean isOn() {
+        return on;
+    }
+
+    /**
+     * Format the change as it is sent in the setActuators command.
+     *
+     * @return The change in the format "nodeId,actuatorId,1|0"
+     */
+    @Override
+    public String toString() {
+        return nodeId + "," + actuatorId + "," + (on ? "1" : "0");
+    }
+}
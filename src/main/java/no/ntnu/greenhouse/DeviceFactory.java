@@ -1,7 +1,14 @@
 package no.ntnu.greenhouse;
 
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.random.RandomGenerator;
+
 /**
  * A factory for producing sensors and actuators of specific types.
+ * Every node gets its own random stream. With a greenhouse seed, see {@link #setSeed(long)},
+ * the stream of a node only depends on the seed and the node ID, so runs can be repeated.
  */
 public class DeviceFactory {
     private static final double NORMAL_GREENHOUSE_TEMPERATURE = 27;
@@ -12,9 +19,15 @@ public class DeviceFactory {
     private static final double MAX_HUMIDITY = 100;
     private static final double NORMAL_GREENHOUSE_HUMIDITY = 80;
     private static final String HUMIDITY_UNIT = "%";
-    private static final String SENSOR_TYPE_TEMPERATURE = "temperature";
+    private static final String SENSOR_TYPE_TEMPERATURE =
+            DeviceTypeRegistry.nameOf(DeviceTypeRegistry.TEMPERATURE);
+    private static final String SENSOR_TYPE_HUMIDITY =
+            DeviceTypeRegistry.nameOf(DeviceTypeRegistry.HUMIDITY);
+    private static final double OUTSIDE_TEMPERATURE = 18;
+    private static final double OUTSIDE_HUMIDITY = 60;
 
-    private static int nextNodeId = 1;
+    private static final AtomicInteger nextNodeId = new AtomicInteger(1);
+    private static Long greenhouseSeed;
 
     /**
      * Constructing the factory is not allowed.
@@ -34,12 +47,54 @@ public class DeviceFactory {
      */
     public static SensorActuatorNode createNode(int temperatureSensorCount, int humiditySensorCount,
                                                 int windowCount, int fanCount, int heaterCount) {
-        SensorActuatorNode node = new SensorActuatorNode(generateUniqueNodeId());
+        return createNode(generateUniqueNodeId(), temperatureSensorCount, humiditySensorCount,
+                windowCount, fanCount, heaterCount);
+    }
+
+    /**
+     * Create a sensor/actuator device with a given ID, for example one of the IDs reserved by
+     * {@link #reserveNodeIds(int)}. Can be called from many threads at once.
+     *
+     * @param nodeId                 The ID of the node, which must not be in use
+     * @param temperatureSensorCount Number of temperature sensors to have on the node
+     * @param humiditySensorCount    Number of humidity sensors to have on the device
+     * @param windowCount            Number of windows the device is connected to
+     * @param fanCount               Number of fans the device is connected to
+     * @param heaterCount            Number of heaters the device is connected to
+     * @return The created sensor/actuator device
+     */
+    public static SensorActuatorNode createNode(int nodeId, int temperatureSensorCount,
+                                                int humiditySensorCount, int windowCount,
+                                                int fanCount, int heaterCount) {
+        return createNode(nodeId, new SensorStore(), temperatureSensorCount, humiditySensorCount,
+                windowCount, fanCount, heaterCount);
+    }
+
+    /**
+     * Create a sensor/actuator device with a given ID, keeping its sensor values in a given
+     * store, which can be shared by many nodes. The sensors get the next slots of the store.
+     *
+     * @param nodeId                 The ID of the node, which must not be in use
+     * @param sensorStore            The store for the values of the sensors of the node
+     * @param temperatureSensorCount Number of temperature sensors to have on the node
+     * @param humiditySensorCount    Number of humidity sensors to have on the device
+     * @param windowCount            Number of windows the device is connected to
+     * @param fanCount               Number of fans the device is connected to
+     * @param heaterCount            Number of heaters the device is connected to
+     * @return The created sensor/actuator device
+     */
+    public static SensorActuatorNode createNode(int nodeId, SensorStore sensorStore,
+                                                int temperatureSensorCount,
+                                                int humiditySensorCount, int windowCount,
+                                                int fanCount, int heaterCount) {
+        SensorActuatorNode node = new SensorActuatorNode(nodeId, sensorStore,
+                createNodeRandom(nodeId));
         if (temperatureSensorCount > 0) {
-            node.addSensors(DeviceFactory.createTemperatureSensor(), temperatureSensorCount);
+            node.addSensors(DeviceFactory.createTemperatureSensor(node.getRandom()),
+                    temperatureSensorCount);
         }
         if (humiditySensorCount > 0) {
-            node.addSensors(DeviceFactory.createHumiditySensor(), humiditySensorCount);
+            node.addSensors(DeviceFactory.createHumiditySensor(node.getRandom()), humiditySensorCount);
         }
         if (windowCount > 0) {
             addActuators(node, DeviceFactory.createWindow(node.getId()), windowCount);
@@ -81,8 +136,20 @@ public class DeviceFactory {
      * @return A typical temperature sensor, which can be used as a template
      */
     public static Sensor createTemperatureSensor() {
-        return new Sensor(SENSOR_TYPE_TEMPERATURE, MIN_TEMPERATURE, MAX_TEMPERATURE,
-                randomize(NORMAL_GREENHOUSE_TEMPERATURE, 1.0), TEMPERATURE_UNIT);
+        return createTemperatureSensor(ThreadLocalRandom.current());
+    }
+
+    /**
+     * Create a typical temperature sensor, with a starting value from a given random stream.
+     *
+     * @param random The random stream, normally the one of the node getting the sensor
+     * @return A typical temperature sensor, which can be used as a template
+     */
+    public static Sensor createTemperatureSensor(RandomGenerator random) {
+        Sensor sensor = new Sensor(SENSOR_TYPE_TEMPERATURE, MIN_TEMPERATURE, MAX_TEMPERATURE,
+                randomize(random, NORMAL_GREENHOUSE_TEMPERATURE, 1.0), TEMPERATURE_UNIT);
+        sensor.setOutsideValue(OUTSIDE_TEMPERATURE);
+        return sensor;
     }
 
     /**
@@ -91,8 +158,20 @@ public class DeviceFactory {
      * @return A typical humidity sensor which can be used as a template
      */
     public static Sensor createHumiditySensor() {
-        return new Sensor("humidity", MIN_HUMIDITY, MAX_HUMIDITY,
-                randomize(NORMAL_GREENHOUSE_HUMIDITY, 5.0), HUMIDITY_UNIT);
+        return createHumiditySensor(ThreadLocalRandom.current());
+    }
+
+    /**
+     * Create a typical humidity sensor, with a starting value from a given random stream.
+     *
+     * @param random The random stream, normally the one of the node getting the sensor
+     * @return A typical humidity sensor which can be used as a template
+     */
+    public static Sensor createHumiditySensor(RandomGenerator random) {
+        Sensor sensor = new Sensor(SENSOR_TYPE_HUMIDITY, MIN_HUMIDITY, MAX_HUMIDITY,
+                randomize(random, NORMAL_GREENHOUSE_HUMIDITY, 5.0), HUMIDITY_UNIT);
+        sensor.setOutsideValue(OUTSIDE_HUMIDITY);
+        return sensor;
     }
 
     /**
@@ -103,8 +182,7 @@ public class DeviceFactory {
      */
     public static Actuator createWindow(int nodeId) {
         Actuator actuator = new Actuator("window", nodeId);
-        actuator.setImpact(SENSOR_TYPE_TEMPERATURE, -5.0);
-        actuator.setImpact("humidity", -10.0);
+        actuator.setAirExchange(2.0);
         return actuator;
     }
 
@@ -116,7 +194,7 @@ public class DeviceFactory {
      */
     public static Actuator createFan(int nodeId) {
         Actuator actuator = new Actuator("fan", nodeId);
-        actuator.setImpact(SENSOR_TYPE_TEMPERATURE, -1.0);
+        actuator.setAirExchange(1.0);
         return actuator;
     }
 
@@ -128,29 +206,86 @@ public class DeviceFactory {
      */
     public static Actuator createHeater(int nodeId) {
         Actuator actuator = new Actuator("heater", nodeId);
-        actuator.setImpact(SENSOR_TYPE_TEMPERATURE, 4.0);
+        actuator.setImpact(DeviceTypeRegistry.TEMPERATURE, 4.0);
+        // Warmer air holds more water, so the relative humidity drops
+        actuator.setImpact(DeviceTypeRegistry.HUMIDITY, -6.0);
         return actuator;
     }
 
     /**
      * Generate a random value within the range [x-d; x+d].
      *
-     * @param x The central value
-     * @param d The allowed difference range
+     * @param random The random stream to use
+     * @param x      The central value
+     * @param d      The allowed difference range
      * @return a randomized value within the desired range
      */
-    private static double randomize(double x, double d) {
-        final double zeroToDoubleD = Math.random() * 2 * d;
+    private static double randomize(RandomGenerator random, double x, double d) {
+        final double zeroToDoubleD = random.nextDouble() * 2 * d;
         final double plusMinusD = zeroToDoubleD - d;
         return x + plusMinusD;
     }
 
+    /**
+     * Make the nodes created from now on use random streams derived from a greenhouse seed,
+     * so the same seed gives the same sensor values every run.
+     *
+     * @param seed The greenhouse seed
+     */
+    public static synchronized void setSeed(long seed) {
+        greenhouseSeed = seed;
+    }
+
+    /**
+     * Create the random stream of a node: derived from the greenhouse seed and the node ID when
+     * there is a seed, otherwise seeded randomly.
+     *
+     * @param nodeId The ID of the node
+     * @return A random stream for the node only, not shared with any other thread
+     */
+    private static synchronized SplittableRandom createNodeRandom(int nodeId) {
+        if (greenhouseSeed == null) {
+            return new SplittableRandom();
+        }
+        return new SplittableRandom(mixSeed(greenhouseSeed + nodeId));
+    }
+
+    /**
+     * Scramble a seed, so that nodes with consecutive IDs get unrelated seeds. Seeds a fixed
+     * step apart would not do: with the step of {@link SplittableRandom} itself, the stream of
+     * one node would be the stream of the previous node, one value later. Uses the finalizer of
+     * MurmurHash3, which is unrelated to the one the streams use for their values.
+     *
+     * @param seed The seed to scramble
+     * @return The scrambled seed
+     */
+    private static long mixSeed(long seed) {
+        seed = (seed ^ (seed >>> 33)) * 0xFF51AFD7ED558CCDL;
+        seed = (seed ^ (seed >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return seed ^ (seed >>> 33);
+    }
+
+    /**
+     * Reserve a block of consecutive node IDs, for building many nodes at once. The nodes then
+     * get the same IDs, and with a greenhouse seed the same random streams, whatever order
+     * they are built in.
+     *
+     * @param count The number of IDs to reserve
+     * @return The first reserved ID
+     */
+    public static int reserveNodeIds(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Can't reserve a negative number of node IDs");
+        }
+        return nextNodeId.getAndAdd(count);
+    }
+
     /**
      * Generate an integer that can be used as a unique ID of sensor/actuator nodes.
      *
      * @return a Unique ID for sensor/actuator nodes
      */
     private static int generateUniqueNodeId() {
-        return nextNodeId++;
+        return nextNodeId.getAndIncrement();
     }
 }
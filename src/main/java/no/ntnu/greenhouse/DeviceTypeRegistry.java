@@ -0,0 +1,84 @@
+package no.ntnu.greenhouse;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives every sensor and actuator type name, like "temperature" or "heater", a small integer
+ * ID, the same for the whole greenhouse. Sensors and actuators keep the ID, so finding the
+ * sensors affected by an actuator compares integers and indexes arrays instead of comparing
+ * or hashing strings. The names are only needed for the messages and the GUI.
+ */
+public final class DeviceTypeRegistry {
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile String[] names = new String[0];
+
+    /**
+     * The ID of the "temperature" sensor type.
+     */
+    public static final int TEMPERATURE = idOf("temperature");
+
+    /**
+     * The ID of the "humidity" sensor type.
+     */
+    public static final int HUMIDITY = idOf("humidity");
+
+    /**
+     * Constructing the registry is not allowed.
+     */
+    private DeviceTypeRegistry() {
+    }
+
+    /**
+     * Get the ID of a type, registering the type the first time it is seen.
+     *
+     * @param name The name of the type. Example: "temperature"
+     * @return The ID of the type, from 0 up to the number of registered types
+     */
+    public static int idOf(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("Type name missing");
+        }
+        Integer id = ids.get(name);
+        return id != null ? id : register(name);
+    }
+
+    /**
+     * Register a type, unless another thread has just done it.
+     *
+     * @param name The name of the type
+     * @return The ID of the type
+     */
+    private static synchronized int register(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            String[] newNames = Arrays.copyOf(names, names.length + 1);
+            id = names.length;
+            newNames[id] = name;
+            // Publish the name before the ID, so anyone with the ID can look up the name
+            names = newNames;
+            ids.put(name, id);
+        }
+        return id;
+    }
+
+    /**
+     * Get the name of a type.
+     *
+     * @param id The ID of the type
+     * @return The name of the type
+     */
+    public static String nameOf(int id) {
+        return names[id];
+    }
+
+    /**
+     * Get the number of registered types.
+     *
+     * @return The number of types, one more than the highest ID
+     */
+    public static int size() {
+        return names.length;
+    }
+}
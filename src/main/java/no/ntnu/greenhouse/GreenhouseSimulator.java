@@ -3,16 +3,31 @@ package no.ntnu.greenhouse;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.OptionalLong;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.SecretKey;
 import no.ntnu.endclients.ClientHandler;
+import no.ntnu.endclients.ClientRegistry;
+import no.ntnu.endclients.EncryptedBroadcast;
+import no.ntnu.endclients.NioServer;
+import no.ntnu.endclients.OutboundQueue;
+import no.ntnu.endclients.SlowConsumerPolicy;
+import no.ntnu.endclients.SocketClientHandler;
 import no.ntnu.gui.greenhouse.ButtonActionHandler;
 import no.ntnu.listeners.greenhouse.NodeStateListener;
+import no.ntnu.listeners.greenhouse.SimulationStepListener;
+import no.ntnu.tools.BinaryFrames;
+import no.ntnu.tools.EncrypterDecrypter;
 import no.ntnu.tools.Logger;
+import no.ntnu.tools.SessionCipher;
 
 import static java.lang.Thread.sleep;
 
@@ -26,18 +41,56 @@ public class GreenhouseSimulator {
      * The default port number for the server.
      */
     public static final int SERVER_PORT_NUMBER = 1234;
+
+    /**
+     * The number of I/O threads used by the non-blocking server.
+     */
+    public static final int NIO_IO_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+
+    /**
+     * How often the throughput of the crypto layer is logged, in milliseconds.
+     */
+    private static final long STATISTICS_PERIOD = 10000;
+
+    /**
+     * The prefix of the command line argument giving the greenhouse seed.
+     */
+    private static final String SEED_ARGUMENT_PREFIX = "seed=";
     private ServerSocket serverSocket;
+    private NioServer nioServer;
+    private ServerMode serverMode = ServerMode.THREADED;
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST_SENSOR;
 
     /**
-     * A map of all the nodes in the greenhouse.
+     * All the nodes in the greenhouse, by ID.
      */
-    public static final Map<Integer, SensorActuatorNode> nodes = new HashMap<>();
+    public static final NodeRegistry nodes = new NodeRegistry();
 
     private final List<PeriodicSwitch> periodicSwitches = new LinkedList<>();
 
-    private final List<ClientHandler> connectedClients = new ArrayList<>();
+    private final ClientRegistry connectedClients = new ClientRegistry();
+
+    private final SessionCipher groupCipher =
+            EncrypterDecrypter.createSessionCipher(EncrypterDecrypter.generateSessionKey());
+
+    private final AtomicLong topologyVersion = new AtomicLong();
+    private volatile TopologySnapshot topology;
+
+    private final ActuatorBroadcastCoalescer actuatorBroadcaster =
+            new ActuatorBroadcastCoalescer(this::broadcastActuatorStates);
+
+    private boolean synchronizedStep;
+    private NodeStepEngine stepEngine;
+    private SimulationScheduler.Task stepTask;
+    private long stepCount;
+    private final List<SimulationStepListener> stepListeners = new CopyOnWriteArrayList<>();
+
+    private int startupWaves = 1;
+    private long startupInterval;
+    private final List<SimulationScheduler.Task> startupTasks = new LinkedList<>();
 
     private boolean isServerRunning;
+    private Timer statisticsTimer;
 
 
     /**
@@ -50,6 +103,84 @@ public class GreenhouseSimulator {
         new ButtonActionHandler(this);
     }
 
+    /**
+     * Choose how the server handles client connections. Must be called before {@link #start()}.
+     *
+     * @param serverMode The server mode to use
+     */
+    public void setServerMode(ServerMode serverMode) {
+        this.serverMode = serverMode;
+    }
+
+    /**
+     * Choose what happens to clients which read their messages too slowly. Must be called
+     * before {@link #start()}.
+     *
+     * @param slowConsumerPolicy The policy for all the clients
+     */
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    /**
+     * Get what happens to clients which read their messages too slowly.
+     *
+     * @return The slow consumer policy
+     */
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    /**
+     * Make the simulation repeatable: every node created from now on gets a random stream
+     * derived from this seed and its ID. Must be called before {@link #initialize()}.
+     *
+     * @param seed The greenhouse seed
+     */
+    public void setSeed(long seed) {
+        DeviceFactory.setSeed(seed);
+        Logger.info("Using the greenhouse seed " + seed);
+    }
+
+    /**
+     * Advance all the nodes together, in one parallel step every sensing period, instead of
+     * each node on its own schedule. The clients then get one sensor update per step with all
+     * the nodes. Must be called before {@link #initialize()}.
+     *
+     * @param synchronizedStep True to step all the nodes together
+     */
+    public void setSynchronizedStep(boolean synchronizedStep) {
+        this.synchronizedStep = synchronizedStep;
+    }
+
+    /**
+     * Register a new listener for the steps of a greenhouse in synchronized-step mode.
+     *
+     * @param listener The listener which will get notified after every step
+     */
+    public void addStepListener(SimulationStepListener listener) {
+        stepListeners.add(listener);
+    }
+
+    /**
+     * Find the greenhouse seed given as a command line argument.
+     *
+     * @param args The command line arguments
+     * @return The seed of a "seed=number" argument, empty when there is none or it is invalid
+     */
+    public static OptionalLong seedFromArgs(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith(SEED_ARGUMENT_PREFIX)) {
+                try {
+                    return OptionalLong.of(Long.parseLong(arg.substring(SEED_ARGUMENT_PREFIX.length())));
+                } catch (NumberFormatException e) {
+                    Logger.error("Invalid seed: " + arg);
+                }
+            }
+        }
+        return OptionalLong.empty();
+    }
+
     /**
      * Initialise the greenhouse but don't start the simulation just yet.
      */
@@ -73,7 +204,74 @@ public class GreenhouseSimulator {
         SensorActuatorNode node = DeviceFactory.createNode(
                 temperature, humidity, windows, fans, heaters);
         System.out.println("Created node " + node.getId());
-        nodes.put(node.getId(), node);
+        registerNode(node);
+    }
+
+    /**
+     * Initialise the greenhouse from a definition of all its nodes, but don't start the
+     * simulation just yet. The nodes are built as the definition says and registered all at once.
+     * The greenhouse seed, if any, must be set before.
+     *
+     * @param topology The definition of the greenhouse
+     */
+    public void initialize(GreenhouseTopology topology) {
+        long startTime = System.nanoTime();
+        boolean infoEnabled = Logger.isInfoEnabled();
+        // Every node would otherwise log every actuator it gets
+        Logger.setInfoEnabled(false);
+        List<SensorActuatorNode> newNodes;
+        try {
+            newNodes = topology.buildNodes();
+        } finally {
+            Logger.setInfoEnabled(infoEnabled);
+        }
+        newNodes.forEach(this::prepareNode);
+        nodes.addAll(newNodes);
+        topologyVersion.incrementAndGet();
+        startupWaves = topology.getStartupWaves();
+        startupInterval = topology.getStartupInterval();
+        long elapsed = (System.nanoTime() - startTime) / 1_000_000;
+        Logger.info("Greenhouse initialized with " + newNodes.size() + " nodes (" + topology
+                + ") in " + elapsed + " ms");
+    }
+
+    /**
+     * Put a node in the map of nodes, and push its sensor readings to the subscribed clients
+     * every time they change.
+     *
+     * @param node The node to register
+     */
+    private void registerNode(SensorActuatorNode node) {
+        prepareNode(node);
+        nodes.add(node);
+        topologyVersion.incrementAndGet();
+    }
+
+    /**
+     * Prepare a node for the greenhouse before it is registered: push its sensor readings to
+     * the subscribed clients every time they change. In synchronized-step mode the readings of
+     * all the nodes are pushed once per step instead, and all the nodes are read once per step.
+     *
+     * @param node The node to prepare
+     */
+    private void prepareNode(SensorActuatorNode node) {
+        node.setExternallyStepped(synchronizedStep);
+        if (synchronizedStep) {
+            node.setSensingDelay(SensorActuatorNode.SENSING_DELAY);
+        } else {
+            node.addSensorListener(sensors -> broadcastSensorUpdate(node));
+        }
+    }
+
+    /**
+     * Remove a node from the greenhouse, for example when it has stopped.
+     *
+     * @param nodeId The ID of the node to remove
+     */
+    public void removeNode(int nodeId) {
+        if (nodes.remove(nodeId)) {
+            topologyVersion.incrementAndGet();
+        }
     }
 
     /**
@@ -81,23 +279,224 @@ public class GreenhouseSimulator {
      */
     public void start() {
         initiateCommunication();
-        for (SensorActuatorNode node : nodes.values()) {
-            node.start();
-        }
+        startNodes(WallClockScheduler.getShared());
         for (PeriodicSwitch periodicSwitch : periodicSwitches) {
             periodicSwitch.start();
         }
+        if (synchronizedStep) {
+            startSynchronizedStep(WallClockScheduler.getShared());
+        }
+        startStatisticsLogging();
 
         Logger.info("Simulator started");
     }
 
+    /**
+     * Run the simulation in virtual time instead of starting it: the node readings, the periodic
+     * switches and the actuator impacts they cause all run on a virtual clock, as fast as the
+     * CPU allows, without any server. Information logging is turned off meanwhile.
+     * The nodes and the periodic switches are stopped again when the virtual time is over, and
+     * the nodes are put back on the wall clock, so the simulator can be started afterwards.
+     *
+     * @param duration How much virtual time to simulate, in milliseconds
+     * @return The virtual clock, telling how many events were run
+     */
+    public VirtualClockScheduler runVirtual(long duration) {
+        VirtualClockScheduler clock = new VirtualClockScheduler();
+        boolean infoEnabled = Logger.isInfoEnabled();
+        long startTime = System.nanoTime();
+        Logger.setInfoEnabled(false);
+        try {
+            for (SensorActuatorNode node : nodes.values()) {
+                node.setScheduler(clock);
+            }
+            startNodes(clock);
+            for (PeriodicSwitch periodicSwitch : periodicSwitches) {
+                periodicSwitch.start();
+            }
+            if (synchronizedStep) {
+                startSynchronizedStep(clock);
+            }
+            clock.runFor(duration);
+        } finally {
+            cancelStartupWaves();
+            stopSynchronizedStep();
+            for (PeriodicSwitch periodicSwitch : periodicSwitches) {
+                periodicSwitch.stop();
+            }
+            for (SensorActuatorNode node : nodes.values()) {
+                node.stop();
+                node.setScheduler(WallClockScheduler.getShared());
+            }
+            Logger.setInfoEnabled(infoEnabled);
+        }
+        long elapsed = (System.nanoTime() - startTime) / 1_000_000;
+        Logger.info("Simulated " + duration + " ms of virtual time in " + elapsed + " ms ("
+                + clock.getEventCount() + " events)");
+        return clock;
+    }
+
+    /**
+     * Start all the nodes. When the greenhouse was defined with startup waves, the nodes are
+     * started a slice at a time, one slice every startup interval, so that starting many nodes
+     * does not hold everything else up.
+     *
+     * @param scheduler The scheduler running the waves
+     */
+    private void startNodes(SimulationScheduler scheduler) {
+        SensorActuatorNode[] all = nodes.snapshot();
+        int waveSize = (all.length + startupWaves - 1) / startupWaves;
+        if (startupWaves <= 1 || waveSize == 0) {
+            startNodes(all, 0, all.length);
+            return;
+        }
+        for (int wave = 0; wave * waveSize < all.length; wave++) {
+            int from = wave * waveSize;
+            int to = Math.min(all.length, from + waveSize);
+            startupTasks.add(scheduler.schedule(() -> startNodes(all, from, to),
+                    wave * startupInterval));
+        }
+    }
+
+    /**
+     * Start a range of nodes.
+     *
+     * @param all  The nodes
+     * @param from The index of the first node to start
+     * @param to   The index after the last node to start
+     */
+    private void startNodes(SensorActuatorNode[] all, int from, int to) {
+        for (int i = from; i < to; i++) {
+            all[i].start();
+        }
+        if (from > 0 || to < all.length) {
+            Logger.info("Started nodes " + (from + 1) + " to " + to + " of " + all.length);
+        }
+    }
+
+    /**
+     * Cancel the startup waves which have not run yet.
+     */
+    private void cancelStartupWaves() {
+        startupTasks.forEach(SimulationScheduler.Task::cancel);
+        startupTasks.clear();
+    }
+
+    /**
+     * Start stepping all the nodes together, once every sensing period.
+     *
+     * @param scheduler The scheduler running the steps
+     */
+    private void startSynchronizedStep(SimulationScheduler scheduler) {
+        stepEngine = new NodeStepEngine();
+        stepTask = scheduler.scheduleAtFixedRate(this::stepAllNodes,
+                SensorActuatorNode.SENSING_DELAY, SensorActuatorNode.SENSING_DELAY);
+        Logger.info("Stepping all nodes together on " + Runtime.getRuntime().availableProcessors()
+                + " threads");
+    }
+
+    /**
+     * Stop stepping the nodes together.
+     */
+    private void stopSynchronizedStep() {
+        if (stepTask != null) {
+            stepTask.cancel();
+            stepTask = null;
+        }
+        if (stepEngine != null) {
+            stepEngine.shutdown();
+            stepEngine = null;
+        }
+    }
+
+    /**
+     * Advance all the running nodes by one step: new sensor values for all of them in parallel,
+     * then one notification of the listeners and one sensor update to the clients for them all.
+     * Only used in synchronized-step mode, from one thread at a time.
+     */
+    private void stepAllNodes() {
+        SensorActuatorNode[] running = Arrays.stream(nodes.snapshot())
+                .filter(SensorActuatorNode::isRunning)
+                .toArray(SensorActuatorNode[]::new);
+        stepEngine.advance(running);
+        for (SensorActuatorNode node : running) {
+            node.completeStep();
+        }
+        stepCount++;
+        List<SensorActuatorNode> stepped = Arrays.asList(running);
+        broadcastSensorUpdate(stepped);
+        for (SimulationStepListener listener : stepListeners) {
+            listener.stepCompleted(stepCount, stepped);
+        }
+        if (Logger.isInfoEnabled()) {
+            Logger.info("Step " + stepCount + ": " + running.length + " nodes");
+        }
+    }
+
+    /**
+     * Periodically log how many messages per second go through the crypto layer, and how far
+     * behind the clients are.
+     */
+    private void startStatisticsLogging() {
+        statisticsTimer = new Timer("statistics", true);
+        statisticsTimer.scheduleAtFixedRate(new TimerTask() {
+            private long lastCount;
+
+            @Override
+            public void run() {
+                long count = EncrypterDecrypter.getThroughput().getMessageCount();
+                String rate = EncrypterDecrypter.getThroughput().sample();
+                if (count != lastCount) {
+                    Logger.info(rate);
+                    logOutboundQueues();
+                }
+                lastCount = count;
+            }
+        }, STATISTICS_PERIOD, STATISTICS_PERIOD);
+    }
+
+
+    /**
+     * Log the depth of the outbound queues of the clients, and what the slow consumer policy
+     * has done so far.
+     */
+    private void logOutboundQueues() {
+        int queued = 0;
+        int deepest = 0;
+        ClientHandler[] clients = connectedClients.snapshot();
+        for (ClientHandler client : clients) {
+            OutboundQueue queue = client.getOutboundQueue();
+            queued += queue.getDepth();
+            deepest = Math.max(deepest, queue.getMaxDepth());
+        }
+        Logger.info("outbound: " + clients.length + " clients, " + queued + " lines queued, deepest "
+                + deepest + ", " + OutboundQueue.getTotalOverflows() + " overflows, "
+                + OutboundQueue.getTotalDropped() + " dropped, "
+                + OutboundQueue.getTotalMerged() + " merged");
+    }
 
     /**
      * Initiates the communication between the server and the client.
      */
     private void initiateCommunication() {
-        Thread serverThread = new Thread(this::initiateRealCommunication);
-        serverThread.start();
+        if (serverMode == ServerMode.NIO) {
+            initiateNioCommunication();
+        } else {
+            Thread serverThread = new Thread(this::initiateRealCommunication);
+            serverThread.start();
+        }
+    }
+
+    /**
+     * Starts the non-blocking server, serving all clients from a small pool of I/O threads.
+     */
+    private void initiateNioCommunication() {
+        nioServer = new NioServer(this, SERVER_PORT_NUMBER, NIO_IO_THREADS);
+        try {
+            nioServer.start();
+        } catch (IOException e) {
+            Logger.error("TCP connection not established due to error : " + e.getMessage());
+        }
     }
 
     /**
@@ -106,8 +505,8 @@ public class GreenhouseSimulator {
      * @param newNode The node to add
      */
     public void addNode(SensorActuatorNode newNode) {
-        nodes.put(newNode.getId(), newNode);
-        this.connectedClients.forEach(ClientHandler::updateNodes);
+        registerNode(newNode);
+        broadcast("updateNodes");
     }
 
     /**
@@ -115,7 +514,13 @@ public class GreenhouseSimulator {
      */
     public void stop() {
         stopCommunication();
+        if (statisticsTimer != null) {
+            statisticsTimer.cancel();
+        }
+        cancelStartupWaves();
+        stopSynchronizedStep();
         nodes.values().forEach(SensorActuatorNode::stop);
+        actuatorBroadcaster.stop();
     }
 
     /**
@@ -123,6 +528,10 @@ public class GreenhouseSimulator {
      */
 
     private void stopCommunication() {
+        if (nioServer != null) {
+            nioServer.stop();
+            return;
+        }
         try {
             serverSocket.close();
             Logger.info("TCP connection successfully closed");
@@ -146,11 +555,11 @@ public class GreenhouseSimulator {
         }
         isServerRunning = true;
         while (isServerRunning && !serverSocket.isClosed()) {
-            ClientHandler clientHandler = acceptNextClientConnection(serverSocket);
+            SocketClientHandler clientHandler = acceptNextClientConnection(serverSocket);
 
             if (clientHandler != null) {
                 addClientToConnectedClients(clientHandler);
-                clientHandler.start();
+                new Thread(clientHandler).start();
             }
         }
     }
@@ -162,11 +571,11 @@ public class GreenhouseSimulator {
      * @return A client handler for the new client
      */
 
-    private ClientHandler acceptNextClientConnection(ServerSocket listeningSocket) {
+    private SocketClientHandler acceptNextClientConnection(ServerSocket listeningSocket) {
         try {
             Socket clientSocket = listeningSocket.accept();
             Logger.info("New client connected from " + clientSocket.getRemoteSocketAddress());
-            return new ClientHandler(clientSocket, this);
+            return new SocketClientHandler(clientSocket, this);
         } catch (IOException e) {
             Logger.error("Could not accept client connection: " + e.getMessage());
             return null;
@@ -181,24 +590,183 @@ public class GreenhouseSimulator {
      * @param isOn       Whether to turn the actuator on or off
      */
     public void handleActuator(int actuatorId, int nodeId, boolean isOn) {
+        Actuator actuator = nodes.get(nodeId).getActuators().get(actuatorId);
         if (!isOn) {
-            nodes.get(nodeId).getActuators().get(actuatorId).turnOn();
+            actuator.turnOn();
         } else {
-            nodes.get(nodeId).getActuators().get(actuatorId).turnOff();
+            actuator.turnOff();
         }
-        broadcastActuatorStateChange(actuatorId, nodeId, isOn);
+        actuatorStateChanged(nodeId, actuatorId, actuator.isOn());
     }
 
     /**
-     * Broadcast a change in actuator state to all connected clients.
+     * Apply many actuator changes in one pass, and broadcast all the new states to the clients
+     * in one message. Changes of unknown actuators are skipped.
+     *
+     * @param changes The actuator changes
+     */
+    public void handleActuatorChanges(List<ActuatorChange> changes) {
+        beginActuatorBulk();
+        try {
+            for (ActuatorChange change : changes) {
+                SensorActuatorNode node = nodes.get(change.getNodeId());
+                Actuator actuator = node != null ? node.getActuators().get(change.getActuatorId()) : null;
+                if (actuator == null) {
+                    Logger.error("Actuator " + change.getActuatorId() + " on node " + change.getNodeId()
+                            + " not found");
+                    continue;
+                }
+                actuator.set(change.isOn());
+                actuatorStateChanged(change.getNodeId(), change.getActuatorId(), actuator.isOn());
+            }
+        } finally {
+            endActuatorBulk();
+        }
+    }
+
+    /**
+     * Start collecting actuator state changes, to broadcast them all in one message when
+     * {@link #endActuatorBulk()} is called. Must always be followed by endActuatorBulk().
+     */
+    public void beginActuatorBulk() {
+        actuatorBroadcaster.beginBulk();
+    }
+
+    /**
+     * Broadcast the actuator state changes collected since {@link #beginActuatorBulk()}.
+     */
+    public void endActuatorBulk() {
+        actuatorBroadcaster.endBulk();
+    }
+
+    /**
+     * Broadcast the new state of an actuator. Changes made close together, or during a bulk
+     * operation, are sent to the clients as one message.
      *
-     * @param actuatorId The ID of the actuator
      * @param nodeId     The ID of the node containing the actuator
-     * @param isOn       Whether the actuator is on or off
+     * @param actuatorId The ID of the actuator
+     * @param isOn       True when the actuator is now on
+     */
+    public void actuatorStateChanged(int nodeId, int actuatorId, boolean isOn) {
+        actuatorBroadcaster.stateChanged(nodeId, actuatorId, isOn);
+    }
+
+    /**
+     * Send the new states of many actuators to all connected clients in one message. Clients
+     * without a session get one "updateActuatorStates:" message per actuator instead, as before
+     * "actuatorStates:" existed; a long message would also not fit in one RSA block.
+     *
+     * @param states The new actuator states
+     */
+    private void broadcastActuatorStates(List<ActuatorChange> states) {
+        EncryptedBroadcast broadcast = new EncryptedBroadcast(
+                () -> formatActuatorStates(states).getBytes(StandardCharsets.UTF_8),
+                () -> BinaryFrames.actuatorStates(states), () -> formatLegacyActuatorStates(states),
+                OutboundQueue.NO_MERGE_KEY, groupCipher);
+        for (ClientHandler client : connectedClients.snapshot()) {
+            client.sendBroadcast(broadcast);
+        }
+    }
+
+    /**
+     * Format new actuator states as an "actuatorStates:" message.
+     *
+     * @param states The new actuator states
+     * @return The message in the format "actuatorStates:nodeId,actuatorId,ON|OFF;..."
+     */
+    private static String formatActuatorStates(List<ActuatorChange> states) {
+        StringBuilder message = new StringBuilder(ClientHandler.ACTUATOR_STATES_PREFIX);
+        for (int i = 0; i < states.size(); i++) {
+            ActuatorChange state = states.get(i);
+            if (i > 0) {
+                message.append(';');
+            }
+            message.append(state.getNodeId()).append(',').append(state.getActuatorId()).append(',')
+                    .append(state.isOn() ? "ON" : "OFF");
+        }
+        return message.toString();
+    }
+
+    /**
+     * Format new actuator states as one "updateActuatorStates:" message per actuator.
+     *
+     * @param states The new actuator states
+     * @return The messages in the format "updateActuatorStates:actuatorId,nodeId,ON|OFF"
      */
-    public void broadcastActuatorStateChange(int actuatorId, int nodeId, boolean isOn) {
-        for (ClientHandler client : connectedClients) {
-            client.updateActuatorStates(actuatorId, nodeId, isOn);
+    private static List<String> formatLegacyActuatorStates(List<ActuatorChange> states) {
+        List<String> messages = new ArrayList<>(states.size());
+        for (ActuatorChange state : states) {
+            messages.add("updateActuatorStates:" + state.getActuatorId() + "," + state.getNodeId()
+                    + "," + (state.isOn() ? "ON" : "OFF"));
+        }
+        return messages;
+    }
+
+    /**
+     * Send the same message to all connected clients. The message is encrypted once for all
+     * the clients with a session, and once for all the clients without one.
+     *
+     * @param message The plain text message
+     */
+    public void broadcast(String message) {
+        EncryptedBroadcast broadcast = new EncryptedBroadcast(message, groupCipher);
+        for (ClientHandler client : connectedClients.snapshot()) {
+            client.sendBroadcast(broadcast);
+        }
+    }
+
+    /**
+     * Get the key which broadcasts to clients with a session are encrypted with.
+     *
+     * @return The broadcast key
+     */
+    public SecretKey getGroupKey() {
+        return groupCipher.getKey();
+    }
+
+    /**
+     * Push new sensor readings of a node to all the clients which have subscribed to them.
+     * The message is built and encrypted once and shared by all the subscribers.
+     *
+     * @param node The node which has new sensor readings
+     */
+    public void broadcastSensorUpdate(SensorActuatorNode node) {
+        EncryptedBroadcast message = null;
+        for (ClientHandler client : connectedClients.snapshot()) {
+            if (client.isSubscribedToSensors()) {
+                if (message == null) {
+                    message = new EncryptedBroadcast(
+                            () -> SensorPayloadWriter.get().start(ClientHandler.SENSOR_UPDATE_PREFIX)
+                                    .writeNode(node).toByteArray(),
+                            () -> SensorFrameWriter.get().start(0).writeNode(node).toByteArray(),
+                            node.getId(), groupCipher);
+                }
+                client.sendBroadcast(message);
+            }
+        }
+    }
+
+    /**
+     * Push new sensor readings of many nodes to all the clients which have subscribed to them,
+     * in one message. A newer update of the same nodes can replace it in the queue of a slow
+     * client.
+     *
+     * @param changedNodes The nodes which have new sensor readings
+     */
+    private void broadcastSensorUpdate(List<SensorActuatorNode> changedNodes) {
+        EncryptedBroadcast message = null;
+        for (ClientHandler client : connectedClients.snapshot()) {
+            if (client.isSubscribedToSensors()) {
+                if (message == null) {
+                    message = new EncryptedBroadcast(
+                            () -> SensorPayloadWriter.get().start(ClientHandler.SENSOR_UPDATE_PREFIX)
+                                    .writeNodesSince(changedNodes, -1).toByteArray(),
+                            () -> SensorFrameWriter.get().start(0)
+                                    .writeNodesSince(changedNodes, -1).toByteArray(),
+                            OutboundQueue.ALL_NODES_MERGE_KEY, groupCipher);
+                }
+                client.sendBroadcast(message);
+            }
         }
     }
 
@@ -209,9 +777,14 @@ public class GreenhouseSimulator {
      * @param isOn   Whether to turn the actuators on or off
      */
     public void handleAllActuators(int nodeId, boolean isOn) {
-        for (Actuator actuator : nodes.get(nodeId).getActuators()) {
-            actuator.set(isOn);
-            broadcastActuatorStateChange(actuator.getId(), nodeId, !isOn); //boolean isOn is inverted, dont know why, but it works
+        beginActuatorBulk();
+        try {
+            for (Actuator actuator : nodes.get(nodeId).getActuators()) {
+                actuator.set(isOn);
+                actuatorStateChanged(nodeId, actuator.getId(), actuator.isOn());
+            }
+        } finally {
+            endActuatorBulk();
         }
     }
 
@@ -221,27 +794,49 @@ public class GreenhouseSimulator {
      * @return A formatted string containing actuator information
      */
     public String getNodes() {
-        Map<Integer, List<Actuator>> actuatorsByNode = new HashMap<>();
+        return getTopology().getText();
+    }
+
+    /**
+     * Get the node and actuator list, rebuilt only when nodes have been added or removed since
+     * the previous call.
+     *
+     * @return The current topology snapshot
+     */
+    public TopologySnapshot getTopology() {
+        TopologySnapshot snapshot = topology;
+        long version = topologyVersion.get();
+        if (snapshot == null || snapshot.getVersion() != version) {
+            // Read the version first, a node added meanwhile only causes one more rebuild
+            snapshot = new TopologySnapshot(version, buildTopology());
+            topology = snapshot;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Build the node and actuator list in the getNodes format.
+     *
+     * @return The node list, nodes without actuators are left out
+     */
+    private String buildTopology() {
+        StringBuilder topologyText = new StringBuilder();
         for (SensorActuatorNode node : nodes.values()) {
+            boolean firstActuator = true;
             for (Actuator actuator : node.getActuators()) {
-                actuatorsByNode.computeIfAbsent(actuator.getNodeId(), k -> new ArrayList<>()).add(actuator);
+                if (firstActuator) {
+                    if (topologyText.length() > 0) {
+                        topologyText.append('/');
+                    }
+                    topologyText.append(node.getId()).append(';');
+                    firstActuator = false;
+                } else {
+                    topologyText.append(' ');
+                }
+                topologyText.append(actuator.getId()).append('_').append(actuator.getType());
             }
         }
-
-        List<String> commands = new ArrayList<>();
-        for (Map.Entry<Integer, List<Actuator>> entry : actuatorsByNode.entrySet()) {
-            int nId = entry.getKey();
-            List<Actuator> actuators = entry.getValue();
-
-            String actuatorString = actuators.stream()
-                    .map(a -> a.getId() + "_" + a.getType())
-                    .collect(Collectors.joining(" "));
-
-            String commandString = nId + ";" + actuatorString;
-            commands.add(commandString);
-        }
-
-        return String.join("/", commands);
+        return topologyText.toString();
     }
 
     /**
@@ -251,42 +846,56 @@ public class GreenhouseSimulator {
      * @return A string containing commands for sensor nodes.
      */
     public String updateSensors() {
-        Map<Integer, List<Sensor>> sensorsByNode = new HashMap<>();
-
-        for (SensorActuatorNode node : nodes.values()) {
-            for (Sensor sensor : node.getSensors()) {
-                sensorsByNode.computeIfAbsent(node.getId(), k -> new ArrayList<>()).add(sensor);
-            }
-        }
-
-        List<String> commands = new ArrayList<>();
-
-        for (Map.Entry<Integer, List<Sensor>> entry : sensorsByNode.entrySet()) {
-            int nodeId = entry.getKey();
-            List<Sensor> sensors = entry.getValue();
+        return updateSensorsSince(-1);
+    }
 
-            String actuatorString = sensors.stream()
-                    .map(sensor -> String.valueOf(sensor.getReading()))
-                    .collect(Collectors.joining(" "));
+    /**
+     * Generate commands only for the nodes whose sensor readings changed after a given version.
+     *
+     * @param watermark The version the client has already seen, see
+     *                  {@link SensorActuatorNode#getLatestSensorVersion()}
+     * @return A string containing commands for the changed sensor nodes, empty when none changed
+     */
+    public String updateSensorsSince(long watermark) {
+        return SensorPayloadWriter.get().start(null).writeNodesSince(nodes.values(), watermark)
+                .toString();
+    }
 
-            String commandString = nodeId + ";" + actuatorString;
-            commands.add(commandString);
-        }
+    /**
+     * Encode the sensor readings of the nodes which changed after a given version, ready to be
+     * encrypted and sent.
+     *
+     * @param prefix    Written in front of the sensor readings, may be null. Must be ASCII.
+     * @param watermark The version the client has already seen, -1 for all nodes
+     * @return The message encoded as UTF-8
+     */
+    public byte[] encodeSensorsSince(String prefix, long watermark) {
+        return SensorPayloadWriter.get().start(prefix).writeNodesSince(nodes.values(), watermark)
+                .toByteArray();
+    }
 
-        return formatSensorCommand(String.join("/", commands));
+    /**
+     * Encode the sensor readings of the nodes which changed after a given version as the body
+     * of a binary frame.
+     *
+     * @param requestId The ID of the request answered, 0 for a pushed update
+     * @param watermark The version the client has already seen, -1 for all nodes
+     * @return The body of a {@link BinaryFrames#SENSORS} frame
+     */
+    public byte[] encodeSensorFrameSince(int requestId, long watermark) {
+        return SensorFrameWriter.get().start(requestId).writeNodesSince(nodes.values(), watermark)
+                .toByteArray();
     }
 
     /**
-     * Format a command string for sensor nodes by removing unnecessary characters.
+     * Generate the sensor command of one node, in the format
+     * "nodeId;type1=value1 unit1,type2=value2 unit2 ".
      *
-     * @param command The original command string
-     * @return The formatted command string
+     * @param node The node to describe
+     * @return The formatted command string, empty if the node has no sensors
      */
-    public String formatSensorCommand(String command) {
-        return command.replace("{", "").replace("}", "")
-                .replace(",", "").replace("   ", ",")
-                .replace("type=", "").replace(" value", "")
-                .replace("unit=", "").replace("; ", ";");
+    public String formatNodeSensors(SensorActuatorNode node) {
+        return SensorPayloadWriter.get().start(null).writeNode(node).toString();
     }
 
     /**
@@ -304,10 +913,19 @@ public class GreenhouseSimulator {
      * @param clientHandler The client handler to add
      */
 
-    private void addClientToConnectedClients(ClientHandler clientHandler) {
+    public void addClientToConnectedClients(ClientHandler clientHandler) {
         connectedClients.add(clientHandler);
     }
 
+    /**
+     * Get the number of connected clients.
+     *
+     * @return The number of clients
+     */
+    public int getConnectedClientCount() {
+        return connectedClients.size();
+    }
+
     /**
      * Add a listener for notification of node staring and stopping.
      *
@@ -320,12 +938,12 @@ public class GreenhouseSimulator {
     }
 
     /**
-     * Returns a map of all the nodes in the greenhouse.
+     * Returns the registry of all the nodes in the greenhouse.
      *
-     * @return A map of all the nodes in the greenhouse.
+     * @return The nodes of the greenhouse, by ID
      */
 
-    public Map<Integer, SensorActuatorNode> getMap() {
+    public NodeRegistry getNodeRegistry() {
         return nodes;
     }
 }
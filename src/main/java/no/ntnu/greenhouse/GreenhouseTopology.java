@@ -0,0 +1,301 @@
+package no.ntnu.greenhouse;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.Properties;
+import java.util.stream.IntStream;
+
+/**
+ * The definition of a whole greenhouse, read from a properties file: node templates, how many
+ * nodes of each, the greenhouse seed and how the nodes are started. For example:
+ * <pre>
+ * seed=42
+ * sharedSensorStore=true
+ * startup.waves=10
+ * startup.interval=500
+ * templates=standard,cold
+ * template.standard.count=40000
+ * template.standard.temperatureSensors=1
+ * template.standard.humiditySensors=2
+ * template.standard.windows=1
+ * template.standard.heaters=1
+ * template.cold.count=10000
+ * template.cold.temperatureSensors=2
+ * template.cold.fans=2
+ * template.cold.sensingDelay=10000
+ * </pre>
+ * Missing sensor and actuator counts are 0, a missing node count is 1, and a missing sensing
+ * delay is {@link SensorActuatorNode#SENSING_DELAY}. The nodes are built in parallel, each with
+ * its own {@link SensorStore}, unless sharedSensorStore is true: then the sensors of all the
+ * nodes are kept in one store, in the order of the nodes, so a synchronized step advances many
+ * nodes in one pass over it.
+ */
+public class GreenhouseTopology {
+    private static final String TEMPLATE_PREFIX = "template.";
+
+    private final OptionalLong seed;
+    private final boolean sharedSensorStore;
+    private final int startupWaves;
+    private final long startupInterval;
+    private final List<NodeTemplate> templates;
+
+    /**
+     * The definition of a group of identical nodes.
+     */
+    private static class NodeTemplate {
+        private final String name;
+        private final int count;
+        private final int temperatureSensors;
+        private final int humiditySensors;
+        private final int windows;
+        private final int fans;
+        private final int heaters;
+        private final long sensingDelay;
+
+        NodeTemplate(Properties properties, String name) {
+            String prefix = TEMPLATE_PREFIX + name + ".";
+            this.name = name;
+            this.count = readInt(properties, prefix + "count", 1);
+            this.temperatureSensors = readInt(properties, prefix + "temperatureSensors", 0);
+            this.humiditySensors = readInt(properties, prefix + "humiditySensors", 0);
+            this.windows = readInt(properties, prefix + "windows", 0);
+            this.fans = readInt(properties, prefix + "fans", 0);
+            this.heaters = readInt(properties, prefix + "heaters", 0);
+            this.sensingDelay = readLong(properties, prefix + "sensingDelay",
+                    SensorActuatorNode.SENSING_DELAY);
+            if (sensingDelay == 0) {
+                throw new IllegalArgumentException("The sensing delay of " + name + " must be positive");
+            }
+        }
+
+        SensorActuatorNode build(int nodeId, SensorStore sensorStore) {
+            SensorActuatorNode node = DeviceFactory.createNode(nodeId, sensorStore,
+                    temperatureSensors, humiditySensors, windows, fans, heaters);
+            node.setSensingDelay(sensingDelay);
+            return node;
+        }
+    }
+
+    /**
+     * Read the definition of a greenhouse from the given properties.
+     *
+     * @param properties The properties, see the class description
+     * @throws IllegalArgumentException When a property is invalid
+     */
+    public GreenhouseTopology(Properties properties) {
+        this.seed = readSeed(properties);
+        this.sharedSensorStore = readBoolean(properties, "sharedSensorStore");
+        this.startupWaves = Math.max(1, readInt(properties, "startup.waves", 1));
+        this.startupInterval = readLong(properties, "startup.interval", 0);
+        this.templates = new ArrayList<>();
+        String names = properties.getProperty("templates", "");
+        for (String name : names.split(",")) {
+            if (!name.isBlank()) {
+                templates.add(new NodeTemplate(properties, name.trim()));
+            }
+        }
+        if (templates.isEmpty()) {
+            throw new IllegalArgumentException("No node templates listed in \"templates\"");
+        }
+    }
+
+    /**
+     * Read the definition of a greenhouse from a properties file.
+     *
+     * @param file The file
+     * @return The greenhouse definition
+     * @throws IOException              When the file can not be read
+     * @throws IllegalArgumentException When a property is invalid
+     */
+    public static GreenhouseTopology load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        return new GreenhouseTopology(properties);
+    }
+
+    /**
+     * Read the greenhouse seed, any long.
+     *
+     * @param properties The properties
+     * @return The seed, empty when there is none
+     */
+    private static OptionalLong readSeed(Properties properties) {
+        String text = properties.getProperty("seed");
+        if (text == null) {
+            return OptionalLong.empty();
+        }
+        try {
+            return OptionalLong.of(Long.parseLong(text.trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid seed: " + text);
+        }
+    }
+
+    /**
+     * Read a property which must be true or false.
+     *
+     * @param properties The properties
+     * @param key        The name of the property
+     * @return The value, false when the property is missing
+     */
+    private static boolean readBoolean(Properties properties, String key) {
+        String text = properties.getProperty(key, "false").trim();
+        if (!text.equals("true") && !text.equals("false")) {
+            throw new IllegalArgumentException("Invalid value for " + key + ": " + text);
+        }
+        return text.equals("true");
+    }
+
+    /**
+     * Read a property which must be a non-negative int.
+     *
+     * @param properties   The properties
+     * @param key          The name of the property
+     * @param defaultValue The value when the property is missing
+     * @return The value
+     */
+    private static int readInt(Properties properties, String key, int defaultValue) {
+        long value = readLong(properties, key, defaultValue);
+        if (value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too large number for " + key + ": " + value);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Read a property which must be a non-negative long.
+     *
+     * @param properties   The properties
+     * @param key          The name of the property
+     * @param defaultValue The value when the property is missing
+     * @return The value
+     */
+    private static long readLong(Properties properties, String key, long defaultValue) {
+        String text = properties.getProperty(key);
+        if (text == null) {
+            return defaultValue;
+        }
+        try {
+            long value = Long.parseLong(text.trim());
+            if (value < 0) {
+                throw new IllegalArgumentException("Negative number for " + key + ": " + text);
+            }
+            return value;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number for " + key + ": " + text);
+        }
+    }
+
+    /**
+     * Get the greenhouse seed.
+     *
+     * @return The seed, empty when the file has none
+     */
+    public OptionalLong getSeed() {
+        return seed;
+    }
+
+    /**
+     * Get in how many waves the nodes are started.
+     *
+     * @return The number of waves, at least 1
+     */
+    public int getStartupWaves() {
+        return startupWaves;
+    }
+
+    /**
+     * Get the time between two startup waves.
+     *
+     * @return The time, in milliseconds
+     */
+    public long getStartupInterval() {
+        return startupInterval;
+    }
+
+    /**
+     * Get the total number of nodes.
+     *
+     * @return The number of nodes of all the templates
+     */
+    public int getNodeCount() {
+        long count = 0;
+        for (NodeTemplate template : templates) {
+            count += template.count;
+        }
+        if (count > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many nodes: " + count);
+        }
+        return (int) count;
+    }
+
+    /**
+     * Build all the nodes. The nodes get a block of consecutive IDs, in the order of the
+     * templates, so with a greenhouse seed the same file gives the same nodes every run.
+     * With a shared sensor store the nodes are built one after the other, so the sensors of
+     * each node come right after the sensors of the node before it; otherwise in parallel.
+     *
+     * @return The nodes, ordered by ID, not started
+     */
+    public List<SensorActuatorNode> buildNodes() {
+        SensorActuatorNode[] nodes = new SensorActuatorNode[getNodeCount()];
+        int firstId = DeviceFactory.reserveNodeIds(nodes.length);
+        SensorStore sharedStore = sharedSensorStore ? new SensorStore(getSensorCount()) : null;
+        int start = 0;
+        for (NodeTemplate template : templates) {
+            IntStream ids = IntStream.range(start, start + template.count);
+            if (sharedStore != null) {
+                ids.forEach(i -> nodes[i] = template.build(firstId + i, sharedStore));
+            } else {
+                ids.parallel().forEach(i -> nodes[i] = template.build(firstId + i, new SensorStore()));
+            }
+            start += template.count;
+        }
+        return Arrays.asList(nodes);
+    }
+
+    /**
+     * Get the total number of sensors.
+     *
+     * @return The number of sensors of all the nodes
+     */
+    private int getSensorCount() {
+        long count = 0;
+        for (NodeTemplate template : templates) {
+            count += (long) template.count * (template.temperatureSensors + template.humiditySensors);
+        }
+        if (count > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many sensors: " + count);
+        }
+        return (int) count;
+    }
+
+    /**
+     * Describe the templates, for logging.
+     *
+     * @return The name and node count of each template, and whether the sensor store is shared
+     */
+    @Override
+    public String toString() {
+        StringBuilder description = new StringBuilder();
+        for (NodeTemplate template : templates) {
+            if (description.length() > 0) {
+                description.append(", ");
+            }
+            description.append(template.count).append(" x ").append(template.name);
+        }
+        if (sharedSensorStore) {
+            description.append(", shared sensor store");
+        }
+        return description.toString();
+    }
+}
@@ -0,0 +1,153 @@
+package no.ntnu.greenhouse;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The nodes of the greenhouse, by ID. Made for looking nodes up on every actuator command and
+ * iterating over all of them on every sensor broadcast, while nodes are added or removed
+ * rarely: like the {@link no.ntnu.endclients.ClientRegistry}, the nodes are kept in arrays
+ * which are replaced, never modified, when nodes are added or removed. A lookup is one read
+ * of an array indexed by the node ID, without locking or boxing the ID, and iterating is never
+ * disturbed by nodes added meanwhile.
+ * Node IDs are expected to be small and dense, as given by {@link DeviceFactory}.
+ */
+public class NodeRegistry {
+    private static final Table EMPTY = new Table(new SensorActuatorNode[0], new SensorActuatorNode[0]);
+
+    private volatile Table table = EMPTY;
+
+    /**
+     * The nodes at one moment: by ID, and in the order they were added.
+     */
+    private static class Table {
+        private final SensorActuatorNode[] byId;
+        private final SensorActuatorNode[] nodes;
+        private final List<SensorActuatorNode> view;
+
+        Table(SensorActuatorNode[] byId, SensorActuatorNode[] nodes) {
+            this.byId = byId;
+            this.nodes = nodes;
+            this.view = Collections.unmodifiableList(Arrays.asList(nodes));
+        }
+    }
+
+    /**
+     * Add a node, replacing any node with the same ID.
+     *
+     * @param node The node to add
+     */
+    public void add(SensorActuatorNode node) {
+        addAll(List.of(node));
+    }
+
+    /**
+     * Add many nodes at once, replacing any nodes with the same IDs. Cheaper than adding them
+     * one by one, as the arrays are only replaced once.
+     *
+     * @param newNodes The nodes to add
+     */
+    public synchronized void addAll(Collection<SensorActuatorNode> newNodes) {
+        Table current = table;
+        int maxId = current.byId.length - 1;
+        for (SensorActuatorNode node : newNodes) {
+            if (node.getId() < 0) {
+                throw new IllegalArgumentException("Invalid node ID: " + node.getId());
+            }
+            maxId = Math.max(maxId, node.getId());
+        }
+        SensorActuatorNode[] byId = Arrays.copyOf(current.byId, maxId + 1);
+        SensorActuatorNode[] nodes = Arrays.copyOf(current.nodes, current.nodes.length + newNodes.size());
+        int size = current.nodes.length;
+        for (SensorActuatorNode node : newNodes) {
+            SensorActuatorNode replaced = byId[node.getId()];
+            byId[node.getId()] = node;
+            if (replaced != null) {
+                nodes[indexOf(nodes, size, replaced)] = node;
+            } else {
+                nodes[size++] = node;
+            }
+        }
+        table = new Table(byId, size == nodes.length ? nodes : Arrays.copyOf(nodes, size));
+    }
+
+    /**
+     * Remove a node.
+     *
+     * @param nodeId The ID of the node to remove
+     * @return True when there was a node with this ID
+     */
+    public synchronized boolean remove(int nodeId) {
+        Table current = table;
+        if (nodeId < 0 || nodeId >= current.byId.length || current.byId[nodeId] == null) {
+            return false;
+        }
+        SensorActuatorNode[] byId = current.byId.clone();
+        byId[nodeId] = null;
+        int index = indexOf(current.nodes, current.nodes.length, current.byId[nodeId]);
+        SensorActuatorNode[] nodes = new SensorActuatorNode[current.nodes.length - 1];
+        System.arraycopy(current.nodes, 0, nodes, 0, index);
+        System.arraycopy(current.nodes, index + 1, nodes, index, nodes.length - index);
+        table = new Table(byId, nodes);
+        return true;
+    }
+
+    /**
+     * Find the position of a node in an array of nodes.
+     *
+     * @param nodes The array
+     * @param size  The number of nodes in use at the start of the array
+     * @param node  The node to find, which must be there
+     * @return The index of the node
+     */
+    private static int indexOf(SensorActuatorNode[] nodes, int size, SensorActuatorNode node) {
+        for (int i = 0; i < size; i++) {
+            if (nodes[i] == node) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("Node " + node.getId() + " missing from the registry");
+    }
+
+    /**
+     * Get a node by its ID.
+     *
+     * @param nodeId The ID of the node
+     * @return The node, or null if there is no node with this ID
+     */
+    public SensorActuatorNode get(int nodeId) {
+        SensorActuatorNode[] byId = table.byId;
+        return nodeId >= 0 && nodeId < byId.length ? byId[nodeId] : null;
+    }
+
+    /**
+     * Get all the nodes right now, in the order they were added. The list does not change
+     * when nodes are added or removed later.
+     *
+     * @return The nodes, as an unmodifiable list
+     */
+    public List<SensorActuatorNode> values() {
+        return table.view;
+    }
+
+    /**
+     * Get all the nodes right now, in the order they were added. The array is shared, it must
+     * not be modified.
+     *
+     * @return The nodes
+     */
+    public SensorActuatorNode[] snapshot() {
+        return table.nodes;
+    }
+
+    /**
+     * Get the number of nodes.
+     *
+     * @return The number of nodes
+     */
+    public int size() {
+        return table.nodes.length;
+    }
+}
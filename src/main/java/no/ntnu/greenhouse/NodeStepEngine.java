@@ -0,0 +1,97 @@
+package no.ntnu.greenhouse;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Advances the sensors of many nodes by one step in parallel. The nodes are split into ranges,
+ * recursively, and the ranges are advanced on a fork/join pool with one thread per processor,
+ * so a step takes about the same time with twice the nodes on twice the processors.
+ * Each range only touches the sensors and the random streams of its own nodes, so the ranges
+ * need no locking between them; nobody is notified during the step. When the nodes share one
+ * {@link SensorStore}, a range of nodes is one range of the store, advanced in one pass.
+ */
+public class NodeStepEngine {
+    /**
+     * Below this many nodes a range is advanced on one thread, as splitting it further costs
+     * more than it saves.
+     */
+    private static final int NODES_PER_TASK = 64;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Create an engine with one thread per processor.
+     */
+    public NodeStepEngine() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create an engine with a given number of threads.
+     *
+     * @param parallelism The number of threads advancing nodes
+     */
+    public NodeStepEngine(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Advance the sensors of the given nodes, and wait until all of them are done.
+     *
+     * @param nodes The nodes to advance
+     */
+    public void advance(SensorActuatorNode[] nodes) {
+        if (nodes.length <= NODES_PER_TASK) {
+            // Handing a few nodes over to the pool takes longer than advancing them here
+            advanceRange(nodes, 0, nodes.length);
+        } else {
+            pool.invoke(new AdvanceTask(nodes, 0, nodes.length));
+        }
+    }
+
+    /**
+     * Advance the nodes in a range on the current thread.
+     *
+     * @param nodes The nodes
+     * @param from  The index of the first node to advance
+     * @param to    The index after the last node to advance
+     */
+    private static void advanceRange(SensorActuatorNode[] nodes, int from, int to) {
+        SensorActuatorNode.advanceSensorValues(nodes, from, to);
+    }
+
+    /**
+     * Stop the threads of the engine. It can not be used afterwards.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Advances the nodes in a range, splitting it in two while it is large.
+     */
+    private static class AdvanceTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final SensorActuatorNode[] nodes;
+        private final int from;
+        private final int to;
+
+        AdvanceTask(SensorActuatorNode[] nodes, int from, int to) {
+            this.nodes = nodes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= NODES_PER_TASK) {
+                advanceRange(nodes, from, to);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new AdvanceTask(nodes, from, middle), new AdvanceTask(nodes, middle, to));
+            }
+        }
+    }
+}
@@ -1,16 +1,14 @@
 package no.ntnu.greenhouse;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
 import no.ntnu.tools.Logger;
 
 /**
  * A dummy switch which periodically turns an actuator on and off. Used for manual testing.
+ * Runs on the scheduler of its node.
  * Note: this class is used only for debugging, you can remove it in your final project!
  */
 public class PeriodicSwitch {
-    private final Timer timer;
+    private SimulationScheduler.Task task;
     private final SensorActuatorNode node;
     private final int actuatorId;
     private final long delay;
@@ -29,30 +27,40 @@ public class PeriodicSwitch {
         this.actuatorId = actuatorId;
         this.delay = m;
         this.name = name;
-
-        timer = new Timer(name);
     }
 
     /**
      * Start the periodic actuator toggling.
      */
     public void start() {
-        timer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                Logger.info(" > " + name + ": toggle actuator " + actuatorId + " on node " + node.getId() + " every " + delay + " ms");
-                if (node.isRunning()) {
-                    try {
-                        node.toggleActuator(actuatorId);
-                    } catch (Exception e) {
-                        Logger.error("Failed to toggle an actuator: " + e.getMessage());
-                        timer.cancel();
-                    }
-                } else {
-                    Logger.info("   Node stopped, stopping the switch");
-                    timer.cancel();
-                }
+        task = node.getScheduler().scheduleAtFixedRate(this::toggle, delay, delay);
+    }
+
+    /**
+     * Stop the periodic actuator toggling. It can be started again.
+     */
+    public void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    /**
+     * Toggle the actuator once, or stop the switch when the node has stopped.
+     */
+    private void toggle() {
+        Logger.info(" > " + name + ": toggle actuator " + actuatorId + " on node " + node.getId() + " every " + delay + " ms");
+        if (node.isRunning()) {
+            try {
+                node.toggleActuator(actuatorId);
+            } catch (Exception e) {
+                Logger.error("Failed to toggle an actuator: " + e.getMessage());
+                task.cancel();
             }
-        }, delay, delay);
+        } else {
+            Logger.info("   Node stopped, stopping the switch");
+            task.cancel();
+        }
     }
 }
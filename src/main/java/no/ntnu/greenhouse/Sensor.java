@@ -1,15 +1,19 @@
 package no.ntnu.greenhouse;
 
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
+
 /**
- * A sensor which can sense the environment in a specific way.
+ * A sensor which can sense the environment in a specific way. The values are kept in a
+ * {@link SensorStore}, the sensor is a view of one slot of it.
  */
 public class Sensor {
+    private final SensorStore store;
+    private final int slot;
     private final SensorReading reading;
-    private final double min;
-    private final double max;
 
     /**
-     * Create a sensor.
+     * Create a sensor, in a store of its own.
      *
      * @param type    The type of the sensor. Examples: "temperature", "humidity"
      * @param min     Minimum allowed value
@@ -18,91 +22,133 @@ public class Sensor {
      * @param unit    The measurement unit. Examples: "%", "C", "lux"
      */
     public Sensor(String type, double min, double max, double current, String unit) {
-        this.reading = new SensorReading(type, current, unit);
-        this.min = min;
-        this.max = max;
-        ensureValueBoundsAndPrecision(current);
+        this(new SensorStore(1), type, min, max, current, unit);
+    }
+
+    /**
+     * Create a sensor in a given store.
+     *
+     * @param store   The store holding the values of the sensor
+     * @param type    The type of the sensor. Examples: "temperature", "humidity"
+     * @param min     Minimum allowed value
+     * @param max     Maximum allowed value
+     * @param current The current (starting) value of the sensor
+     * @param unit    The measurement unit. Examples: "%", "C", "lux"
+     */
+    public Sensor(SensorStore store, String type, double min, double max, double current,
+                  String unit) {
+        this.store = store;
+        this.slot = store.add(type, min, max, current, unit);
+        this.reading = new StoredReading(store, slot);
     }
 
     public String getType() {
-        return reading.getType();
+        return store.getType(slot);
+    }
+
+    /**
+     * Get the ID of the type of the sensor.
+     *
+     * @return The ID of the type in the {@link DeviceTypeRegistry}
+     */
+    public int getTypeId() {
+        return store.getTypeId(slot);
     }
 
     /**
      * Get the current sensor reading.
      *
-     * @return The current sensor reading (value)
+     * @return The current sensor reading (value). Always shows the current value.
      */
     public SensorReading getReading() {
         return reading;
     }
 
+    /**
+     * Get the slot of this sensor in its store.
+     *
+     * @return The slot
+     */
+    public int getSlot() {
+        return slot;
+    }
+
     /**
      * Create a clone of this sensor.
      *
-     * @return A clone of this sensor, where all the fields are the same
+     * @return A clone of this sensor, where all the fields are the same, in a store of its own
      */
     public Sensor createClone() {
-        return new Sensor(this.reading.getType(), this.min, this.max,
-                this.reading.getValue(), this.reading.getUnit());
+        return createClone(new SensorStore(1));
     }
 
     /**
-     * Add a random noise to the sensors to simulate realistic values.
+     * Create a clone of this sensor in a given store.
+     *
+     * @param store The store to hold the values of the clone
+     * @return A clone of this sensor, where all the fields are the same
      */
-    public void addRandomNoise() {
-        double newValue = this.reading.getValue() + generateRealisticNoise();
-        ensureValueBoundsAndPrecision(newValue);
+    public Sensor createClone(SensorStore store) {
+        Sensor clone = new Sensor(store, getType(), this.store.getMin(slot), this.store.getMax(slot),
+                this.store.getValue(slot), this.store.getUnit(slot));
+        clone.setOutsideValue(getOutsideValue());
+        return clone;
     }
 
     /**
-     * Ensure that the value is within the allowed bounds and has the correct precision.
+     * Get the value outside the greenhouse, which the exchange with the outside air pulls the
+     * value of this sensor towards.
      *
-     * @param newValue The new value to set
+     * @return The outside value, by default the starting value of the sensor
      */
-
-    private void ensureValueBoundsAndPrecision(double newValue) {
-        newValue = roundToTwoDecimals(newValue);
-        if (newValue < min) {
-            newValue = min;
-        } else if (newValue > max) {
-            newValue = max;
-        }
-        reading.setValue(newValue);
+    public double getOutsideValue() {
+        return store.getOutsideValue(slot);
     }
 
     /**
-     * Round a double value to two decimals.
+     * Set the value outside the greenhouse, which the exchange with the outside air pulls the
+     * value of this sensor towards.
      *
-     * @param value The value to round
-     * @return The rounded value
+     * @param outsideValue The outside value
      */
+    public void setOutsideValue(double outsideValue) {
+        store.setOutsideValue(slot, outsideValue);
+    }
 
-    private double roundToTwoDecimals(double value) {
-        return Math.round(value * 100.0) / 100.0;
+    /**
+     * Add a random noise to the sensors to simulate realistic values.
+     * Nodes add noise to all their sensors at once, see {@link SensorStore#addRandomNoise}.
+     */
+    public void addRandomNoise() {
+        addRandomNoise(ThreadLocalRandom.current());
     }
 
     /**
-     * Generate a random noise value in the range [-1% and +1%].
+     * Add a random noise to the sensor, drawn from a given random stream.
      *
-     * @return A random noise value
+     * @param random The random stream, normally the one of the node of the sensor
      */
-
-    private double generateRealisticNoise() {
-        final double wholeRange = max - min;
-        final double onePercentOfRange = wholeRange / 100.0;
-        final double zeroToTwoPercent = Math.random() * onePercentOfRange * 2;
-        return zeroToTwoPercent - onePercentOfRange; // In the range [-1%..+1%]
+    public void addRandomNoise(RandomGenerator random) {
+        store.addRandomNoise(slot, slot + 1, random);
     }
 
     /**
-     * Apply an external impact (from an actuator) to the current value of the sensor.
+     * Apply an external impact (from an actuator) to the sensor: change how fast its value
+     * changes.
      *
-     * @param impact The impact to apply - the delta for the value
+     * @param impact The change of the rate, in units per hour
      */
     public void applyImpact(double impact) {
-        double newValue = this.reading.getValue() + impact;
-        ensureValueBoundsAndPrecision(newValue);
+        store.addRate(slot, impact);
+    }
+
+    /**
+     * Change how fast the value of the sensor moves towards the outside value.
+     *
+     * @param airExchange The change of the exchange rate, in air changes per hour
+     */
+    public void applyAirExchange(double airExchange) {
+        store.addExchangeRate(slot, airExchange);
     }
 
     /**
@@ -115,4 +161,28 @@ public class Sensor {
     public String toString() {
         return reading.toString();
     }
+
+    /**
+     * The reading of a sensor, reading and writing the value in the store.
+     */
+    private static class StoredReading extends SensorReading {
+        private final SensorStore store;
+        private final int slot;
+
+        StoredReading(SensorStore store, int slot) {
+            super(store.getType(slot), store.getValue(slot), store.getUnit(slot));
+            this.store = store;
+            this.slot = slot;
+        }
+
+        @Override
+        public double getValue() {
+            return store.getValue(slot);
+        }
+
+        @Override
+        public void setValue(double newValue) {
+            store.setValue(slot, newValue);
+        }
+    }
 }
@@ -1,10 +1,14 @@
 package no.ntnu.greenhouse;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
 
 import no.ntnu.listeners.common.ActuatorListener;
 import no.ntnu.listeners.common.CommunicationChannelListener;
@@ -14,21 +18,53 @@ import no.ntnu.tools.Logger;
 
 /**
  * Represents one node with sensors and actuators.
+ * The sensor values of the node are written by its own periodic task (or the greenhouse step)
+ * and by actuator changes coming from the clients, and read by the clients and the GUI. All
+ * the writes to the sensor values, their rates and the sensor version go through one
+ * {@link StampedLock}, used by the readers as a sequence lock: they copy the values without
+ * locking, and only copy again if a write happened meanwhile, see
+ * {@link #readSensorValues(double[])}. Readers therefore never hold up the writers, and always
+ * get the values of all the sensors from the same moment, with their version.
  */
 public class SensorActuatorNode implements ActuatorListener, CommunicationChannelListener {
-    private static final long SENSING_DELAY = 5000;
+    /**
+     * The default time between two sensor readings, in milliseconds.
+     */
+    public static final long SENSING_DELAY = 5000;
+
+    private static final double MILLISECONDS_PER_HOUR = 3_600_000.0;
+
+    /**
+     * Greenhouse-wide sequence, bumped every time the sensor readings of any node change.
+     */
+    private static final AtomicLong sensorChangeSequence = new AtomicLong();
+
     private final int id;
-    private final List<Sensor> sensors = new LinkedList<>();
+    // Sensors are only added while the node is being built, readers may iterate meanwhile
+    private final List<Sensor> sensors = new CopyOnWriteArrayList<>();
+    private volatile int[] sensorSlots = new int[0];
+    private final StampedLock sensorLock = new StampedLock();
+    private final SensorStore sensorStore;
+    // The sensors of the node use the slots [firstSensorSlot, firstSensorSlot + sensors.size())
+    // as long as sensorSlotsContiguous is true
+    private int firstSensorSlot;
+    private boolean sensorSlotsContiguous = true;
+    // The slots of the sensors of the node, by the ID of their type
+    private int[][] sensorSlotsByType = new int[0][];
     private ActuatorCollection actuators = new ActuatorCollection();
 
     private final List<SensorListener> sensorListeners = new LinkedList<>();
     private final List<ActuatorListener> actuatorListeners = new LinkedList<>();
     private final List<NodeStateListener> stateListeners = new LinkedList<>();
 
-    Timer sensorReadingTimer;
+    private SimulationScheduler scheduler = WallClockScheduler.getShared();
+    private SimulationScheduler.Task sensorReadingTask;
+    private long sensingDelay = SENSING_DELAY;
 
-    private boolean running;
-    private final Random random = new Random();
+    private volatile boolean running;
+    private boolean externallyStepped;
+    private final SplittableRandom random;
+    private volatile long sensorVersion;
 
     /**
      * Create a sensor/actuator node. Note: the node itself does not check whether the ID is unique.
@@ -37,7 +73,21 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
      * @param id A unique ID of the node
      */
     public SensorActuatorNode(int id) {
+        this(id, new SensorStore(), new SplittableRandom());
+    }
+
+    /**
+     * Create a sensor/actuator node keeping its sensor values in a given store, which can be
+     * shared with other nodes, and using its own random stream.
+     *
+     * @param id          A unique ID of the node
+     * @param sensorStore The store for the values of the sensors of the node
+     * @param random      The random stream of the node, used by the node only
+     */
+    public SensorActuatorNode(int id, SensorStore sensorStore, SplittableRandom random) {
         this.id = id;
+        this.sensorStore = sensorStore;
+        this.random = random;
         this.running = false;
     }
 
@@ -71,8 +121,41 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
         }
 
         for (int i = 0; i < n; ++i) {
-            sensors.add(template.createClone());
+            Sensor sensor = template.createClone(sensorStore);
+            if (sensors.isEmpty()) {
+                firstSensorSlot = sensor.getSlot();
+            } else if (sensor.getSlot() != firstSensorSlot + sensors.size()) {
+                // Another node added sensors to the shared store in between
+                sensorSlotsContiguous = false;
+            }
+            sensors.add(sensor);
+            indexSensorSlot(sensor.getTypeId(), sensor.getSlot());
+        }
+        int[] slots = new int[sensors.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = sensors.get(i).getSlot();
         }
+        sensorSlots = slots;
+    }
+
+    /**
+     * Add the slot of a sensor to the index of sensor slots by type.
+     *
+     * @param typeId The ID of the type of the sensor
+     * @param slot   The slot of the sensor
+     */
+    private void indexSensorSlot(int typeId, int slot) {
+        if (typeId >= sensorSlotsByType.length) {
+            sensorSlotsByType = Arrays.copyOf(sensorSlotsByType, typeId + 1);
+        }
+        int[] slots = sensorSlotsByType[typeId];
+        if (slots == null) {
+            slots = new int[] {slot};
+        } else {
+            slots = Arrays.copyOf(slots, slots.length + 1);
+            slots[slots.length - 1] = slot;
+        }
+        sensorSlotsByType[typeId] = slots;
     }
 
     /**
@@ -120,13 +203,67 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
     }
 
 
+    /**
+     * Get the random stream of this node. Not thread-safe, only to be used while creating the
+     * node or from its own periodic task.
+     *
+     * @return The random stream
+     */
+    public RandomGenerator getRandom() {
+        return random;
+    }
+
+    /**
+     * Set the scheduler running the periodic sensor readings of this node. Takes effect the
+     * next time the node is started.
+     *
+     * @param scheduler The scheduler, by default the one shared by all nodes
+     */
+    public void setScheduler(SimulationScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Set the time between two sensor readings. Takes effect the next time the node is started.
+     *
+     * @param sensingDelay The time between two readings, in milliseconds
+     */
+    public void setSensingDelay(long sensingDelay) {
+        if (sensingDelay <= 0) {
+            throw new IllegalArgumentException("The sensing delay must be positive");
+        }
+        this.sensingDelay = sensingDelay;
+    }
+
+    /**
+     * Let the greenhouse advance the sensors of this node together with all the other nodes,
+     * see {@link NodeStepEngine}, instead of the node reading them on its own schedule.
+     * Takes effect the next time the node is started.
+     *
+     * @param externallyStepped True when the greenhouse steps this node
+     */
+    public void setExternallyStepped(boolean externallyStepped) {
+        this.externallyStepped = externallyStepped;
+    }
+
+    /**
+     * Get the scheduler running the periodic work of this node.
+     *
+     * @return The scheduler
+     */
+    public SimulationScheduler getScheduler() {
+        return scheduler;
+    }
+
     /**
      * Start simulating the sensor node's operation.
      */
     public void start() {
         if (!running) {
             Logger.info("-- Starting simulation of node " + id);
-            startPeriodicSensorReading();
+            if (!externallyStepped) {
+                startPeriodicSensorReading();
+            }
             running = true;
             notifyStateChanges(true);
         }
@@ -153,16 +290,14 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
         return running;
     }
 
+    /**
+     * Start the periodic sensor reading on the scheduler. The first reading is delayed by a
+     * random part of the period, so the nodes do not all read their sensors at once.
+     */
     private void startPeriodicSensorReading() {
-        sensorReadingTimer = new Timer();
-        TimerTask newSensorValueTask = new TimerTask() {
-            @Override
-            public void run() {
-                generateNewSensorValues();
-            }
-        };
-        long randomStartDelay = random.nextLong(SENSING_DELAY);
-        sensorReadingTimer.scheduleAtFixedRate(newSensorValueTask, randomStartDelay, SENSING_DELAY);
+        long randomStartDelay = random.nextLong(sensingDelay);
+        sensorReadingTask = scheduler.scheduleAtFixedRate(this::generateNewSensorValues,
+                randomStartDelay, sensingDelay);
     }
 
     /**
@@ -170,8 +305,9 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
      */
 
     private void stopPeriodicSensorReading() {
-        if (sensorReadingTimer != null) {
-            sensorReadingTimer.cancel();
+        if (sensorReadingTask != null) {
+            sensorReadingTask.cancel();
+            sensorReadingTask = null;
         }
     }
 
@@ -179,20 +315,188 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
      * Generate new sensor values and send a notification to all listeners.
      */
     public void generateNewSensorValues() {
-        Logger.infoNoNewline("Node #" + id);
-        addRandomNoiseToSensors();
+        boolean print = Logger.isInfoEnabled();
+        if (print) {
+            Logger.infoNoNewline("Node #" + id);
+        }
+        long stamp = sensorLock.writeLock();
+        try {
+            advanceSensorValuesLocked();
+            markSensorsChanged();
+        } finally {
+            sensorLock.unlockWrite(stamp);
+        }
         notifySensorChanges();
-        debugPrint();
+        if (print) {
+            debugPrint();
+        }
     }
 
     /**
-     * Add random noise to all sensors.
+     * Generate new sensor values, without notifying anyone. Used by the greenhouse to advance
+     * many nodes in parallel; {@link #completeStep()} must be called afterwards.
+     * The values and their version are written under one lock, so a reader never sees the new
+     * values with the old version: the version is taken here and not for the whole step, as
+     * a version taken before the values are written could be given out by
+     * {@link #getLatestSensorVersion()} while this node still has its old values.
      */
+    public void advanceSensorValues() {
+        long stamp = sensorLock.writeLock();
+        try {
+            advanceSensorValuesLocked();
+            markSensorsChanged();
+        } finally {
+            sensorLock.unlockWrite(stamp);
+        }
+    }
 
-    private void addRandomNoiseToSensors() {
-        for (Sensor sensor : sensors) {
-            sensor.addRandomNoise();
+    /**
+     * Generate new sensor values for a range of nodes, without notifying anyone, like
+     * {@link #advanceSensorValues()} for each of them. Nodes sharing a store, with their sensors
+     * one after the other in it and the same sensing delay, are advanced together in one pass
+     * over the store, under the write locks of all of them. The noise of such a run of nodes
+     * comes from the random stream of its first node, so with a greenhouse seed the values
+     * still only depend on the seed and on which nodes are running.
+     *
+     * @param nodes The nodes
+     * @param from  The index of the first node to advance
+     * @param to    The index after the last node to advance
+     */
+    public static void advanceSensorValues(SensorActuatorNode[] nodes, int from, int to) {
+        int start = from;
+        while (start < to) {
+            int end = start + 1;
+            while (end < to && nodes[end].followsInStore(nodes[end - 1])) {
+                end++;
+            }
+            if (end - start == 1) {
+                nodes[start].advanceSensorValues();
+            } else {
+                advanceTogether(nodes, start, end);
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Check whether the sensors of this node come right after the sensors of another node in
+     * the same store, and are advanced over the same period.
+     *
+     * @param previous The other node
+     * @return True when both nodes can be advanced in one pass over the store
+     */
+    private boolean followsInStore(SensorActuatorNode previous) {
+        return sensorStore == previous.sensorStore
+                && sensorSlotsContiguous && previous.sensorSlotsContiguous
+                && !sensors.isEmpty() && !previous.sensors.isEmpty()
+                && sensingDelay == previous.sensingDelay
+                && firstSensorSlot == previous.firstSensorSlot + previous.sensors.size();
+    }
+
+    /**
+     * Advance nodes whose sensors are one after the other in the same store, in one pass.
+     *
+     * @param nodes The nodes
+     * @param from  The index of the first node, see {@link #followsInStore(SensorActuatorNode)}
+     * @param to    The index after the last node
+     */
+    private static void advanceTogether(SensorActuatorNode[] nodes, int from, int to) {
+        long[] stamps = new long[to - from];
+        for (int i = from; i < to; i++) {
+            stamps[i - from] = nodes[i].sensorLock.writeLock();
+        }
+        try {
+            SensorActuatorNode first = nodes[from];
+            SensorActuatorNode last = nodes[to - 1];
+            first.sensorStore.advance(first.firstSensorSlot,
+                    last.firstSensorSlot + last.sensors.size(),
+                    first.sensingDelay / MILLISECONDS_PER_HOUR, first.random);
+            for (int i = from; i < to; i++) {
+                nodes[i].markSensorsChanged();
+            }
+        } finally {
+            for (int i = from; i < to; i++) {
+                nodes[i].sensorLock.unlockWrite(stamps[i - from]);
+            }
+        }
+    }
+
+    /**
+     * Generate new sensor values while holding the write lock.
+     * The values first evolve over one sensing period under the actuators which are on, then
+     * get random noise; both in one pass over the store when the slots of the sensors are next
+     * to each other.
+     */
+    private void advanceSensorValuesLocked() {
+        double hours = sensingDelay / MILLISECONDS_PER_HOUR;
+        if (sensorSlotsContiguous) {
+            sensorStore.advance(firstSensorSlot, firstSensorSlot + sensors.size(), hours, random);
+        } else {
+            for (Sensor sensor : sensors) {
+                sensorStore.integrate(sensor.getSlot(), sensor.getSlot() + 1, hours);
+                sensor.addRandomNoise(random);
+            }
+        }
+    }
+
+    /**
+     * Copy the current values of all the sensors of this node, all from the same moment,
+     * without blocking the writers: the values are copied optimistically, and copied again,
+     * under the read lock, only when a write happened meanwhile.
+     *
+     * @param values Where to copy the values, in the order of {@link #getSensors()}. Values of
+     *               sensors beyond its length are not copied.
+     * @return The version of the copied values, see {@link #getSensorVersion()}
+     */
+    public long readSensorValues(double[] values) {
+        int[] slots = sensorSlots;
+        int count = Math.min(slots.length, values.length);
+        long stamp = sensorLock.tryOptimisticRead();
+        long version = copySensorValues(slots, values, count);
+        if (!sensorLock.validate(stamp)) {
+            stamp = sensorLock.readLock();
+            try {
+                version = copySensorValues(slots, values, count);
+            } finally {
+                sensorLock.unlockRead(stamp);
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Copy sensor values and their version. Under an optimistic read, the result may be
+     * inconsistent and must be validated before use.
+     *
+     * @param slots  The slots of the sensors in the store
+     * @param values Where to copy the values
+     * @param count  How many values to copy
+     * @return The version of the values
+     */
+    private long copySensorValues(int[] slots, double[] values, int count) {
+        long version = sensorVersion;
+        for (int i = 0; i < count; i++) {
+            values[i] = sensorStore.getValue(slots[i]);
+        }
+        return version;
+    }
+
+    /**
+     * Get a copy of the current readings of all the sensors of this node, all from the same
+     * moment, which do not change afterwards. For readers on other threads, like the GUI.
+     *
+     * @return The readings, in the order of {@link #getSensors()}
+     */
+    public List<SensorReading> getSensorSnapshot() {
+        double[] values = new double[sensorSlots.length];
+        readSensorValues(values);
+        List<SensorReading> readings = new ArrayList<>(values.length);
+        for (int i = 0; i < values.length; i++) {
+            Sensor sensor = sensors.get(i);
+            readings.add(new SensorReading(sensor.getType(), values[i],
+                    sensorStore.getUnit(sensor.getSlot())));
         }
+        return readings;
     }
 
     /**
@@ -252,7 +556,7 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
 
     @Override
     public void actuatorUpdated(int nodeId, Actuator actuator) {
-        actuator.applyImpact(this);
+        updateActuatorRates();
         notifyActuatorChange(actuator);
     }
 
@@ -289,19 +593,72 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
     }
 
     /**
-     * An actuator has been turned on or off. Apply an impact from it to all sensors of given type.
-     *
-     * @param sensorType The type of sensors affected
-     * @param impact     The impact to apply
+     * Set how fast the sensors change from the actuators which are on right now. The values
+     * themselves change from the next sensor reading on.
+     * The rates are computed from the states of all the actuators, not changed by the impact of
+     * the one which changed, so actuators changed at the same time by several threads can not
+     * leave the rates off: the last update sees the latest state of every actuator.
      */
-    public void applyActuatorImpact(String sensorType, double impact) {
-        for (Sensor sensor : sensors) {
-            if (sensor.getType().equals(sensorType)) {
-                sensor.applyImpact(impact);
+    private void updateActuatorRates() {
+        double[] ratesByType = new double[sensorSlotsByType.length];
+        long stamp = sensorLock.writeLock();
+        try {
+            double airExchange = 0;
+            for (Actuator actuator : actuators) {
+                if (actuator.isOn()) {
+                    actuator.addImpacts(ratesByType);
+                    airExchange += actuator.getAirExchange();
+                }
+            }
+            for (int typeId = 0; typeId < sensorSlotsByType.length; typeId++) {
+                if (sensorSlotsByType[typeId] != null) {
+                    for (int slot : sensorSlotsByType[typeId]) {
+                        sensorStore.setRate(slot, ratesByType[typeId]);
+                        sensorStore.setExchangeRate(slot, airExchange);
+                    }
+                }
             }
+        } finally {
+            sensorLock.unlockWrite(stamp);
         }
     }
 
+    /**
+     * Remember that the sensor readings of this node have changed. Must be called with the
+     * write lock held, after the new values are set.
+     */
+    private void markSensorsChanged() {
+        sensorVersion = sensorChangeSequence.incrementAndGet();
+    }
+
+    /**
+     * Finish a step of the greenhouse: notify the sensor listeners of this node about the values
+     * written by {@link #advanceSensorValues()}.
+     */
+    public void completeStep() {
+        notifySensorChanges();
+    }
+
+    /**
+     * Get the version of the sensor readings of this node.
+     *
+     * @return The value of the greenhouse-wide change sequence when the readings last changed,
+     *         0 if they never changed
+     */
+    public long getSensorVersion() {
+        return sensorVersion;
+    }
+
+    /**
+     * Get the latest version of sensor readings of all nodes.
+     *
+     * @return The current value of the greenhouse-wide change sequence. Any node changing
+     *         after this call gets a higher version.
+     */
+    public static long getLatestSensorVersion() {
+        return sensorChangeSequence.get();
+    }
+
     /**
      * Get all the sensors available on the device.
      *
@@ -0,0 +1,168 @@
+package no.ntnu.greenhouse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import no.ntnu.tools.BinaryFrames;
+
+/**
+ * Writes sensor readings as the body of a {@link BinaryFrames#SENSORS} frame, into a reusable
+ * buffer. The binary counterpart of {@link SensorPayloadWriter}: types and units are encoded
+ * once and remembered, and only the final copy returned by {@link #toByteArray()} is new.
+ * One writer per thread, see {@link #get()}.
+ */
+public class SensorFrameWriter {
+    private static final ThreadLocal<SensorFrameWriter> WRITERS =
+            ThreadLocal.withInitial(SensorFrameWriter::new);
+
+    private final Map<String, byte[]> encodedStrings = new HashMap<>();
+    private byte[] buffer = new byte[1024];
+    private double[] values = new double[16];
+    private int length;
+    private int nodeCountPosition;
+    private int nodeCount;
+
+    /**
+     * Get the writer of the current thread.
+     *
+     * @return The writer, ready to be started
+     */
+    public static SensorFrameWriter get() {
+        return WRITERS.get();
+    }
+
+    /**
+     * Start a new frame body, discarding the previous one.
+     *
+     * @param requestId The ID of the request answered, 0 for a pushed update
+     * @return This writer
+     */
+    public SensorFrameWriter start(int requestId) {
+        length = 0;
+        nodeCount = 0;
+        writeByte(BinaryFrames.SENSORS);
+        writeInt(requestId);
+        nodeCountPosition = length;
+        writeInt(0);
+        return this;
+    }
+
+    /**
+     * Write the readings of all the nodes whose sensors changed after a given version.
+     * Nodes without sensors are skipped.
+     *
+     * @param nodes     The nodes to write
+     * @param watermark The version the client has already seen, -1 to write all nodes
+     * @return This writer
+     */
+    public SensorFrameWriter writeNodesSince(Iterable<SensorActuatorNode> nodes, long watermark) {
+        for (SensorActuatorNode node : nodes) {
+            if (node.getSensorVersion() > watermark) {
+                writeNode(node);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Write the readings of one node. Nodes without sensors are skipped.
+     *
+     * @param node The node to write
+     * @return This writer
+     */
+    public SensorFrameWriter writeNode(SensorActuatorNode node) {
+        List<Sensor> sensors = node.getSensors();
+        if (sensors.isEmpty()) {
+            return this;
+        }
+        if (values.length < sensors.size()) {
+            values = new double[sensors.size()];
+        }
+        // All the values from the same moment, even while the node is writing new ones
+        node.readSensorValues(values);
+        writeInt(node.getId());
+        int sensorCountPosition = length;
+        int sensorCount = 0;
+        writeShort(0);
+        int count = Math.min(sensors.size(), values.length);
+        for (int i = 0; i < count; i++) {
+            SensorReading reading = sensors.get(i).getReading();
+            writeString(reading.getType());
+            writeLong(Double.doubleToLongBits(values[i]));
+            writeString(reading.getUnit());
+            sensorCount++;
+        }
+        buffer[sensorCountPosition] = (byte) (sensorCount >> 8);
+        buffer[sensorCountPosition + 1] = (byte) sensorCount;
+        nodeCount++;
+        return this;
+    }
+
+    /**
+     * Write a string as a one-byte length followed by its UTF-8 bytes, encoding it only the
+     * first time it is seen.
+     *
+     * @param text The string to write, at most 255 bytes long
+     */
+    private void writeString(String text) {
+        byte[] encoded = encodedStrings.get(text);
+        if (encoded == null) {
+            encoded = text.getBytes(StandardCharsets.UTF_8);
+            if (encoded.length > 255) {
+                encoded = Arrays.copyOf(encoded, 255);
+            }
+            encodedStrings.put(text, encoded);
+        }
+        writeByte(encoded.length);
+        ensureCapacity(encoded.length);
+        System.arraycopy(encoded, 0, buffer, length, encoded.length);
+        length += encoded.length;
+    }
+
+    private void writeLong(long value) {
+        writeInt((int) (value >> 32));
+        writeInt((int) value);
+    }
+
+    private void writeInt(int value) {
+        writeShort(value >> 16);
+        writeShort(value);
+    }
+
+    private void writeShort(int value) {
+        writeByte(value >> 8);
+        writeByte(value);
+    }
+
+    private void writeByte(int b) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) b;
+    }
+
+    /**
+     * Grow the buffer if needed. It is never shrunk.
+     *
+     * @param extra The number of bytes about to be written
+     */
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+
+    /**
+     * Copy the frame body out of the reusable buffer.
+     *
+     * @return The frame body
+     */
+    public byte[] toByteArray() {
+        byte[] body = Arrays.copyOf(buffer, length);
+        body[nodeCountPosition] = (byte) (nodeCount >> 24);
+        body[nodeCountPosition + 1] = (byte) (nodeCount >> 16);
+        body[nodeCountPosition + 2] = (byte) (nodeCount >> 8);
+        body[nodeCountPosition + 3] = (byte) nodeCount;
+        return body;
+    }
+}
@@ -0,0 +1,237 @@
+package no.ntnu.greenhouse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes sensor readings in the format of the updateSensor response straight into a reusable
+ * UTF-8 buffer: "nodeId;type1=value1 unit1,type2=value2 unit2 /nodeId2;...".
+ * Sensor types and units are encoded once and remembered, and node IDs and values are written
+ * digit by digit, so once the buffer is large enough, writing any number of nodes allocates
+ * nothing. Only the final copy returned by {@link #toByteArray()} or {@link #toString()} is new.
+ * One writer per thread, see {@link #get()}.
+ */
+public class SensorPayloadWriter {
+    private static final ThreadLocal<SensorPayloadWriter> WRITERS =
+            ThreadLocal.withInitial(SensorPayloadWriter::new);
+
+    /**
+     * Values at least this large are written by {@link Double#toString(double)}, which then
+     * switches to scientific notation.
+     */
+    private static final double PLAIN_NOTATION_LIMIT = 1e7;
+
+    private final Map<String, byte[]> encodedStrings = new HashMap<>();
+    private byte[] buffer = new byte[1024];
+    private double[] values = new double[16];
+    private int length;
+    private boolean firstNode;
+
+    /**
+     * Get the writer of the current thread.
+     *
+     * @return The writer, ready to be started
+     */
+    public static SensorPayloadWriter get() {
+        return WRITERS.get();
+    }
+
+    /**
+     * Start a new payload, discarding the previous one.
+     *
+     * @param prefix Written in front of the sensor readings, for example "sensorUpdate:".
+     *               Must be ASCII. May be null.
+     * @return This writer
+     */
+    public SensorPayloadWriter start(String prefix) {
+        length = 0;
+        firstNode = true;
+        if (prefix != null) {
+            writeAscii(prefix);
+        }
+        return this;
+    }
+
+    /**
+     * Write the readings of all the nodes whose sensors changed after a given version.
+     * Nodes without sensors are skipped.
+     *
+     * @param nodes     The nodes to write
+     * @param watermark The version the client has already seen, -1 to write all nodes
+     * @return This writer
+     */
+    public SensorPayloadWriter writeNodesSince(Iterable<SensorActuatorNode> nodes, long watermark) {
+        for (SensorActuatorNode node : nodes) {
+            if (node.getSensorVersion() > watermark) {
+                writeNode(node);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Write the readings of one node. Nodes without sensors are skipped.
+     *
+     * @param node The node to write
+     * @return This writer
+     */
+    public SensorPayloadWriter writeNode(SensorActuatorNode node) {
+        List<Sensor> sensors = node.getSensors();
+        if (sensors.isEmpty()) {
+            return this;
+        }
+        if (values.length < sensors.size()) {
+            values = new double[sensors.size()];
+        }
+        // All the values from the same moment, even while the node is writing new ones
+        node.readSensorValues(values);
+        if (!firstNode) {
+            writeByte('/');
+        }
+        firstNode = false;
+        writeLong(node.getId());
+        writeByte(';');
+        int count = Math.min(sensors.size(), values.length);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                writeByte(',');
+            }
+            SensorReading reading = sensors.get(i).getReading();
+            writeEncoded(reading.getType());
+            writeByte('=');
+            writeValue(values[i]);
+            writeByte(' ');
+            writeEncoded(reading.getUnit());
+        }
+        writeByte(' ');
+        return this;
+    }
+
+    /**
+     * Write a value exactly as {@link Double#toString(double)} would. Values with at most two
+     * decimals, which is what the sensors produce, are written digit by digit.
+     *
+     * @param value The value to write
+     */
+    private void writeValue(double value) {
+        long hundredths = Math.round(value * 100);
+        if (Math.abs(value) >= PLAIN_NOTATION_LIMIT || hundredths / 100.0 != value) {
+            writeAscii(Double.toString(value));
+            return;
+        }
+        if (hundredths < 0 || (hundredths == 0 && 1 / value < 0)) {
+            writeByte('-');
+            hundredths = -hundredths;
+        }
+        writeLong(hundredths / 100);
+        writeByte('.');
+        int fraction = (int) (hundredths % 100);
+        writeByte('0' + fraction / 10);
+        if (fraction % 10 != 0) {
+            writeByte('0' + fraction % 10);
+        }
+    }
+
+    /**
+     * Write a whole number.
+     *
+     * @param number The number to write
+     */
+    private void writeLong(long number) {
+        if (number < 0) {
+            writeByte('-');
+            number = -number;
+        }
+        int digits = 1;
+        for (long rest = number / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + number % 10);
+            number /= 10;
+        }
+        length += digits;
+    }
+
+    /**
+     * Write a string, encoding it as UTF-8 only the first time it is seen.
+     *
+     * @param text The string to write
+     */
+    private void writeEncoded(String text) {
+        byte[] encoded = encodedStrings.get(text);
+        if (encoded == null) {
+            encoded = text.getBytes(StandardCharsets.UTF_8);
+            encodedStrings.put(text, encoded);
+        }
+        ensureCapacity(encoded.length);
+        System.arraycopy(encoded, 0, buffer, length, encoded.length);
+        length += encoded.length;
+    }
+
+    /**
+     * Write a string which only contains ASCII characters, without remembering it.
+     *
+     * @param text The string to write
+     */
+    private void writeAscii(String text) {
+        ensureCapacity(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            buffer[length++] = (byte) text.charAt(i);
+        }
+    }
+
+    /**
+     * Write one ASCII character.
+     *
+     * @param b The character to write
+     */
+    private void writeByte(int b) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) b;
+    }
+
+    /**
+     * Grow the buffer if needed. It is never shrunk, so it settles at the size of the largest
+     * payload written by the thread.
+     *
+     * @param extra The number of bytes about to be written
+     */
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+
+    /**
+     * Get the size of the payload written so far.
+     *
+     * @return The size in bytes
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Copy the payload out of the reusable buffer.
+     *
+     * @return The payload, encoded as UTF-8
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * Copy the payload out of the reusable buffer as a string.
+     *
+     * @return The payload
+     */
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -3,7 +3,8 @@ package no.ntnu.greenhouse;
 import java.util.Objects;
 
 /**
- * Represents one sensor reading (value).
+ * Represents one sensor reading (value). The readings of the sensors in the greenhouse are views
+ * of a {@link SensorStore}, always showing the current value, see {@link Sensor#getReading()}.
  */
 public class SensorReading {
     private final String type;
@@ -71,7 +72,7 @@ public class SensorReading {
 
     @Override
     public String toString() {
-        return "{ type=" + type + ", value=" + value + ", unit=" + unit + " }";
+        return "{ type=" + type + ", value=" + getValue() + ", unit=" + unit + " }";
     }
 
     /**
@@ -80,7 +81,7 @@ public class SensorReading {
      * @return The sensor reading and the unit
      */
     public String getFormatted() {
-        return value + unit;
+        return getValue() + unit;
     }
 
 
@@ -96,11 +97,11 @@ public class SensorReading {
         if (this == o) {
             return true;
         }
-        if (o == null || getClass() != o.getClass()) {
+        if (!(o instanceof SensorReading)) {
             return false;
         }
         SensorReading that = (SensorReading) o;
-        return Double.compare(value, that.value) == 0
+        return Double.compare(getValue(), that.getValue()) == 0
                 && Objects.equals(type, that.type)
                 && Objects.equals(unit, that.unit);
     }
@@ -112,6 +113,6 @@ public class SensorReading {
      */
     @Override
     public int hashCode() {
-        return Objects.hash(type, value, unit);
+        return Objects.hash(type, getValue(), unit);
     }
 }
@@ -0,0 +1,387 @@
+package no.ntnu.greenhouse;
+
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+
+/**
+ * Stores the values of many sensors column by column: one array of values, one of minimums,
+ * one of maximums, and so on, indexed by the slot of the sensor. Noise, rounding and clamping
+ * are then applied to a whole range of sensors in plain loops over primitive arrays, which the
+ * JIT compiler can turn into vector instructions, instead of one sensor object at a time.
+ * The actuators which are on do not change the values at once, they set how fast the values
+ * change: a rate per hour, and an exchange with the outside air pulling the value towards the
+ * outside value, see {@link #integrate(int, int, double)}.
+ * One store can hold the sensors of all the nodes of a greenhouse, so that a step of many nodes
+ * is one pass over the arrays, see {@link #advance(int, int, double, RandomGenerator)}.
+ * {@link Sensor} and the {@link SensorReading} it returns are views of one slot.
+ * Sensors must be added before the simulation runs: adding a sensor may replace the arrays,
+ * and values written meanwhile by another thread would be lost.
+ */
+public class SensorStore {
+    /**
+     * How many sensors get their noise generated at once, small enough for the noise to stay
+     * in the cache between generating it and applying it.
+     */
+    private static final int NOISE_CHUNK = 1024;
+
+    private static final ThreadLocal<double[]> NOISE =
+            ThreadLocal.withInitial(() -> new double[NOISE_CHUNK]);
+
+    private int[] typeIds;
+    private String[] units;
+    private double[] values;
+    private double[] mins;
+    private double[] maxs;
+    private double[] noiseRanges;
+    private double[] rates;
+    private double[] exchangeRates;
+    private double[] outsideValues;
+    // What the rounding to two decimals has cut off the changes, so slow changes add up
+    private double[] residuals;
+    private int size;
+
+    /**
+     * Create an empty store.
+     */
+    public SensorStore() {
+        this(4);
+    }
+
+    /**
+     * Create an empty store with room for a given number of sensors. It grows when needed.
+     *
+     * @param capacity The number of sensors expected
+     */
+    public SensorStore(int capacity) {
+        capacity = Math.max(capacity, 1);
+        typeIds = new int[capacity];
+        units = new String[capacity];
+        values = new double[capacity];
+        mins = new double[capacity];
+        maxs = new double[capacity];
+        noiseRanges = new double[capacity];
+        rates = new double[capacity];
+        exchangeRates = new double[capacity];
+        outsideValues = new double[capacity];
+        residuals = new double[capacity];
+    }
+
+    /**
+     * Add a sensor. The value is rounded to two decimals and kept within the bounds.
+     *
+     * @param type  The type of the sensor
+     * @param min   Minimum allowed value
+     * @param max   Maximum allowed value
+     * @param value The starting value
+     * @param unit  The measurement unit
+     * @return The slot of the new sensor
+     */
+    public synchronized int add(String type, double min, double max, double value, String unit) {
+        if (size == values.length) {
+            int capacity = size * 2;
+            typeIds = Arrays.copyOf(typeIds, capacity);
+            units = Arrays.copyOf(units, capacity);
+            values = Arrays.copyOf(values, capacity);
+            mins = Arrays.copyOf(mins, capacity);
+            maxs = Arrays.copyOf(maxs, capacity);
+            noiseRanges = Arrays.copyOf(noiseRanges, capacity);
+            rates = Arrays.copyOf(rates, capacity);
+            exchangeRates = Arrays.copyOf(exchangeRates, capacity);
+            outsideValues = Arrays.copyOf(outsideValues, capacity);
+            residuals = Arrays.copyOf(residuals, capacity);
+        }
+        int slot = size++;
+        typeIds[slot] = DeviceTypeRegistry.idOf(type);
+        units[slot] = unit;
+        mins[slot] = min;
+        maxs[slot] = max;
+        // The noise is in the range [-1%..+1%] of the whole range of the sensor
+        noiseRanges[slot] = (max - min) / 100.0;
+        setValueWithinBounds(slot, value);
+        // Until told otherwise, the outside is like the starting value
+        outsideValues[slot] = values[slot];
+        return slot;
+    }
+
+    /**
+     * Get the number of sensors in the store.
+     *
+     * @return The number of sensors
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the type of a sensor.
+     *
+     * @param slot The slot of the sensor
+     * @return The type, for example "temperature"
+     */
+    public String getType(int slot) {
+        return DeviceTypeRegistry.nameOf(typeIds[slot]);
+    }
+
+    /**
+     * Get the type ID of a sensor.
+     *
+     * @param slot The slot of the sensor
+     * @return The ID of the type in the {@link DeviceTypeRegistry}
+     */
+    public int getTypeId(int slot) {
+        return typeIds[slot];
+    }
+
+    /**
+     * Get the measurement unit of a sensor.
+     *
+     * @param slot The slot of the sensor
+     * @return The unit, for example "%"
+     */
+    public String getUnit(int slot) {
+        return units[slot];
+    }
+
+    /**
+     * Get the minimum allowed value of a sensor.
+     *
+     * @param slot The slot of the sensor
+     * @return The minimum value
+     */
+    public double getMin(int slot) {
+        return mins[slot];
+    }
+
+    /**
+     * Get the maximum allowed value of a sensor.
+     *
+     * @param slot The slot of the sensor
+     * @return The maximum value
+     */
+    public double getMax(int slot) {
+        return maxs[slot];
+    }
+
+    /**
+     * Get the current value of a sensor.
+     *
+     * @param slot The slot of the sensor
+     * @return The current value
+     */
+    public double getValue(int slot) {
+        return values[slot];
+    }
+
+    /**
+     * Set the value of a sensor as it is, without rounding or bounds.
+     *
+     * @param slot  The slot of the sensor
+     * @param value The new value
+     */
+    public void setValue(int slot, double value) {
+        values[slot] = value;
+    }
+
+    /**
+     * Set the value of a sensor, rounded to two decimals and kept within its bounds.
+     *
+     * @param slot  The slot of the sensor
+     * @param value The new value
+     */
+    public void setValueWithinBounds(int slot, double value) {
+        values[slot] = Math.min(Math.max(roundToTwoDecimals(value), mins[slot]), maxs[slot]);
+    }
+
+    /**
+     * Get the value outside the greenhouse, which the exchange with the outside air pulls the
+     * value of a sensor towards.
+     *
+     * @param slot The slot of the sensor
+     * @return The outside value
+     */
+    public double getOutsideValue(int slot) {
+        return outsideValues[slot];
+    }
+
+    /**
+     * Set the value outside the greenhouse, which the exchange with the outside air pulls the
+     * value of a sensor towards.
+     *
+     * @param slot  The slot of the sensor
+     * @param value The outside value
+     */
+    public void setOutsideValue(int slot, double value) {
+        outsideValues[slot] = value;
+    }
+
+    /**
+     * Change how fast the value of a sensor changes, for example when a heater is turned on.
+     *
+     * @param slot  The slot of the sensor
+     * @param delta The change of the rate, in units per hour
+     */
+    public void addRate(int slot, double delta) {
+        rates[slot] += delta;
+    }
+
+    /**
+     * Get how fast the value of a sensor changes.
+     *
+     * @param slot The slot of the sensor
+     * @return The rate, in units per hour
+     */
+    public double getRate(int slot) {
+        return rates[slot];
+    }
+
+    /**
+     * Set how fast the value of a sensor changes, for example from the actuators which are on.
+     *
+     * @param slot The slot of the sensor
+     * @param rate The rate, in units per hour
+     */
+    public void setRate(int slot, double rate) {
+        rates[slot] = rate;
+    }
+
+    /**
+     * Change how fast the value of a sensor moves towards the outside value, for example when
+     * a window is opened.
+     *
+     * @param slot  The slot of the sensor
+     * @param delta The change of the exchange rate, in air changes per hour
+     */
+    public void addExchangeRate(int slot, double delta) {
+        exchangeRates[slot] += delta;
+    }
+
+    /**
+     * Get how fast the value of a sensor moves towards the outside value.
+     *
+     * @param slot The slot of the sensor
+     * @return The exchange rate, in air changes per hour
+     */
+    public double getExchangeRate(int slot) {
+        return exchangeRates[slot];
+    }
+
+    /**
+     * Set how fast the value of a sensor moves towards the outside value, for example from the
+     * windows which are open.
+     *
+     * @param slot The slot of the sensor
+     * @param rate The exchange rate, in air changes per hour
+     */
+    public void setExchangeRate(int slot, double rate) {
+        exchangeRates[slot] = rate;
+    }
+
+    /**
+     * Let the values of a range of sensors evolve over a period of time: each value changes by
+     * its rate, and moves towards its outside value in proportion to its exchange rate and the
+     * difference. The values are then rounded to two decimals and kept within their bounds,
+     * what the rounding cuts off is kept for the next period.
+     *
+     * @param from  The first slot
+     * @param to    The slot after the last one
+     * @param hours The length of the period, in hours
+     */
+    public void integrate(int from, int to, double hours) {
+        double[] values = this.values;
+        double[] mins = this.mins;
+        double[] maxs = this.maxs;
+        double[] rates = this.rates;
+        double[] exchangeRates = this.exchangeRates;
+        double[] outsideValues = this.outsideValues;
+        double[] residuals = this.residuals;
+        for (int slot = from; slot < to; slot++) {
+            double exact = values[slot] + residuals[slot];
+            // At most the whole difference is exchanged, so long periods do not overshoot
+            double exchange = Math.min(exchangeRates[slot] * hours, 1.0);
+            exact += rates[slot] * hours + exchange * (outsideValues[slot] - exact);
+            double bounded = Math.min(Math.max(exact, mins[slot]), maxs[slot]);
+            double value = Math.min(Math.max(roundToTwoDecimals(bounded), mins[slot]), maxs[slot]);
+            values[slot] = value;
+            residuals[slot] = bounded - value;
+        }
+    }
+
+    /**
+     * Let the values of a range of sensors evolve over a period of time and add random noise to
+     * them, in one pass over the arrays. Gives the same values as
+     * {@link #integrate(int, int, double)} followed by
+     * {@link #addRandomNoise(int, int, RandomGenerator)} with the same random stream.
+     *
+     * @param from   The first slot
+     * @param to     The slot after the last one
+     * @param hours  The length of the period, in hours
+     * @param random The source of the noise
+     */
+    public void advance(int from, int to, double hours, RandomGenerator random) {
+        double[] noise = NOISE.get();
+        double[] values = this.values;
+        double[] mins = this.mins;
+        double[] maxs = this.maxs;
+        double[] noiseRanges = this.noiseRanges;
+        double[] rates = this.rates;
+        double[] exchangeRates = this.exchangeRates;
+        double[] outsideValues = this.outsideValues;
+        double[] residuals = this.residuals;
+        for (int start = from; start < to; start += NOISE_CHUNK) {
+            int count = Math.min(NOISE_CHUNK, to - start);
+            for (int i = 0; i < count; i++) {
+                noise[i] = random.nextDouble();
+            }
+            for (int i = 0; i < count; i++) {
+                int slot = start + i;
+                double exact = values[slot] + residuals[slot];
+                double exchange = Math.min(exchangeRates[slot] * hours, 1.0);
+                exact += rates[slot] * hours + exchange * (outsideValues[slot] - exact);
+                double bounded = Math.min(Math.max(exact, mins[slot]), maxs[slot]);
+                double integrated = Math.min(Math.max(roundToTwoDecimals(bounded), mins[slot]), maxs[slot]);
+                residuals[slot] = bounded - integrated;
+                double value = integrated + (noise[i] * 2 - 1) * noiseRanges[slot];
+                values[slot] = Math.min(Math.max(roundToTwoDecimals(value), mins[slot]), maxs[slot]);
+            }
+        }
+    }
+
+    /**
+     * Add random noise in the range [-1%..+1%] of their range to the values of a range of
+     * sensors, then round them to two decimals and keep them within their bounds.
+     *
+     * @param from   The first slot
+     * @param to     The slot after the last one
+     * @param random The source of the noise
+     */
+    public void addRandomNoise(int from, int to, RandomGenerator random) {
+        double[] noise = NOISE.get();
+        double[] values = this.values;
+        double[] mins = this.mins;
+        double[] maxs = this.maxs;
+        double[] noiseRanges = this.noiseRanges;
+        for (int start = from; start < to; start += NOISE_CHUNK) {
+            int count = Math.min(NOISE_CHUNK, to - start);
+            // Drawing random numbers is sequential, the arithmetic below is not
+            for (int i = 0; i < count; i++) {
+                noise[i] = random.nextDouble();
+            }
+            for (int i = 0; i < count; i++) {
+                int slot = start + i;
+                double value = values[slot] + (noise[i] * 2 - 1) * noiseRanges[slot];
+                values[slot] = Math.min(Math.max(roundToTwoDecimals(value), mins[slot]), maxs[slot]);
+            }
+        }
+    }
+
+    /**
+     * Round a double value to two decimals, halves rounded up like {@link Math#round(double)}.
+     * Written with {@link Math#floor(double)}, which the JIT compiler can vectorize.
+     *
+     * @param value The value to round
+     * @return The rounded value
+     */
+    static double roundToTwoDecimals(double value) {
+        return Math.floor(value * 100.0 + 0.5) / 100.0;
+    }
+}
@@ -0,0 +1,31 @@
+package no.ntnu.greenhouse;
+
+/**
+ * The way the greenhouse server handles its client connections.
+ */
+public enum ServerMode {
+    /**
+     * One blocking thread per connected client.
+     */
+    THREADED,
+
+    /**
+     * Non-blocking channels multiplexed over a small fixed pool of I/O threads.
+     */
+    NIO;
+
+    /**
+     * Find the server mode given as a command line argument.
+     *
+     * @param args The command line arguments
+     * @return NIO when one of the arguments is "nio", THREADED otherwise
+     */
+    public static ServerMode fromArgs(String[] args) {
+        for (String arg : args) {
+            if ("nio".equals(arg)) {
+                return NIO;
+            }
+        }
+        return THREADED;
+    }
+}
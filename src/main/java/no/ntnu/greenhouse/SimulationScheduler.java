@@ -0,0 +1,38 @@
+package no.ntnu.greenhouse;
+
+/**
+ * Runs the periodic work of the simulation: the sensor readings of the nodes and the periodic
+ * switches, and the delayed start of nodes. One scheduler is shared by all the nodes, so the number of threads does not grow
+ * with the number of nodes.
+ */
+public interface SimulationScheduler {
+
+    /**
+     * A scheduled task, which can be cancelled.
+     */
+    interface Task {
+        /**
+         * Stop running the task. A run already in progress is not interrupted.
+         */
+        void cancel();
+    }
+
+    /**
+     * Run a task periodically, at a fixed rate.
+     *
+     * @param task         The task to run
+     * @param initialDelay Milliseconds before the first run
+     * @param period       Milliseconds between the start of one run and the next
+     * @return The scheduled task, to cancel it
+     */
+    Task scheduleAtFixedRate(Runnable task, long initialDelay, long period);
+
+    /**
+     * Run a task once, after a delay.
+     *
+     * @param task  The task to run
+     * @param delay Milliseconds before the run
+     * @return The scheduled task, to cancel it
+     */
+    Task schedule(Runnable task, long delay);
+}
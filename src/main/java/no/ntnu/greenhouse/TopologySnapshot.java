@@ -0,0 +1,52 @@
+package no.ntnu.greenhouse;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The node and actuator list of the greenhouse at one point in time, as sent in the getNodes
+ * response. Built once per change of the topology and shared by all the clients asking for it.
+ */
+public class TopologySnapshot {
+    private final long version;
+    private final String text;
+    private final byte[] bytes;
+
+    /**
+     * Create a snapshot.
+     *
+     * @param version The topology version the snapshot was built from
+     * @param text    The node list in the getNodes format
+     */
+    public TopologySnapshot(long version, String text) {
+        this.version = version;
+        this.text = text;
+        this.bytes = text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the topology version the snapshot was built from.
+     *
+     * @return The version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the node list.
+     *
+     * @return The node list in the getNodes format
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Get the node list encoded as UTF-8, ready to be encrypted.
+     *
+     * @return The encoded node list. Shared, must not be modified.
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+}
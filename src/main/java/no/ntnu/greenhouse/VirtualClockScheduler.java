@@ -0,0 +1,127 @@
+package no.ntnu.greenhouse;
+
+import java.util.PriorityQueue;
+import no.ntnu.tools.Logger;
+
+/**
+ * Runs the simulation in virtual time, as fast as the CPU allows: the scheduled tasks are events
+ * in a priority queue ordered by their virtual time, and the clock jumps straight from one event
+ * to the next instead of waiting. Events at the same time run in the order they were scheduled,
+ * so with a greenhouse seed a run is repeatable.
+ * Not thread-safe: tasks must be scheduled, and the clock advanced, from one thread only.
+ */
+public class VirtualClockScheduler implements SimulationScheduler {
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private long now;
+    private long nextSequence;
+    private long eventCount;
+
+    /**
+     * One scheduled task, and when it runs next.
+     */
+    private static class Event implements Comparable<Event>, Task {
+        private final Runnable task;
+        // 0 for a task run only once
+        private final long period;
+        private long time;
+        private long sequence;
+        private boolean cancelled;
+
+        Event(Runnable task, long time, long period) {
+            this.task = task;
+            this.time = time;
+            this.period = period;
+        }
+
+        @Override
+        public void cancel() {
+            // Left in the queue, and dropped when it comes first
+            cancelled = true;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            int byTime = Long.compare(time, other.time);
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    @Override
+    public Task scheduleAtFixedRate(Runnable task, long initialDelay, long period) {
+        Event event = new Event(task, now + initialDelay, period);
+        enqueue(event);
+        return event;
+    }
+
+    @Override
+    public Task schedule(Runnable task, long delay) {
+        Event event = new Event(task, now + delay, 0);
+        enqueue(event);
+        return event;
+    }
+
+    /**
+     * Put an event in the queue, after the events already queued for the same time.
+     *
+     * @param event The event to queue
+     */
+    private void enqueue(Event event) {
+        event.sequence = nextSequence++;
+        events.add(event);
+    }
+
+    /**
+     * Run all the events of the next period of virtual time.
+     *
+     * @param duration How many milliseconds of virtual time to run
+     */
+    public void runFor(long duration) {
+        runUntil(now + duration);
+    }
+
+    /**
+     * Run all the events up to a given virtual time, and move the clock to it.
+     *
+     * @param endTime The virtual time to stop at, in milliseconds since the clock started
+     */
+    public void runUntil(long endTime) {
+        Event event;
+        while ((event = events.peek()) != null && event.time <= endTime) {
+            events.poll();
+            if (event.cancelled) {
+                continue;
+            }
+            now = event.time;
+            try {
+                event.task.run();
+            } catch (RuntimeException e) {
+                Logger.error("Scheduled task failed, stopping it: " + e.getMessage());
+                event.cancel();
+            }
+            eventCount++;
+            if (!event.cancelled && event.period > 0) {
+                event.time += event.period;
+                enqueue(event);
+            }
+        }
+        now = Math.max(now, endTime);
+    }
+
+    /**
+     * Get the current virtual time.
+     *
+     * @return Milliseconds since the clock started
+     */
+    public long getTime() {
+        return now;
+    }
+
+    /**
+     * Get the number of events run so far.
+     *
+     * @return The number of events
+     */
+    public long getEventCount() {
+        return eventCount;
+    }
+}
@@ -0,0 +1,78 @@
+package no.ntnu.greenhouse;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import no.ntnu.tools.Logger;
+
+/**
+ * Runs the simulation in real time on a small pool of threads, one per processor, no matter
+ * how many nodes there are. Replaces the one {@link java.util.Timer} thread per node and per
+ * periodic switch. Like those timers, the threads keep the application running while nodes
+ * are running, and end shortly after the last node has stopped.
+ */
+public class WallClockScheduler implements SimulationScheduler {
+    private static final long IDLE_THREAD_TIMEOUT = 10000;
+
+    private static final WallClockScheduler SHARED =
+            new WallClockScheduler(Runtime.getRuntime().availableProcessors());
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * Create a scheduler with its own threads.
+     *
+     * @param threadCount The number of threads running the tasks
+     */
+    public WallClockScheduler(int threadCount) {
+        AtomicInteger threadNumber = new AtomicInteger(1);
+        executor = new ScheduledThreadPoolExecutor(threadCount,
+                task -> new Thread(task, "simulation-" + threadNumber.getAndIncrement()));
+        // Longer than the sensing period, so the threads only end when nothing is scheduled
+        executor.setKeepAliveTime(IDLE_THREAD_TIMEOUT, TimeUnit.MILLISECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        // Stopped nodes must not leave their tasks behind in the queue
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Get the scheduler shared by all the nodes of the greenhouse.
+     *
+     * @return The shared scheduler
+     */
+    public static WallClockScheduler getShared() {
+        return SHARED;
+    }
+
+    @Override
+    public Task scheduleAtFixedRate(Runnable task, long initialDelay, long period) {
+        ScheduledFuture<?> future = executor.scheduleAtFixedRate(logFailures(task), initialDelay,
+                period, TimeUnit.MILLISECONDS);
+        return () -> future.cancel(false);
+    }
+
+    @Override
+    public Task schedule(Runnable task, long delay) {
+        ScheduledFuture<?> future = executor.schedule(logFailures(task), delay, TimeUnit.MILLISECONDS);
+        return () -> future.cancel(false);
+    }
+
+    /**
+     * Wrap a task so that an exception thrown by it is logged.
+     *
+     * @param task The task
+     * @return The task logging its failures
+     */
+    private static Runnable logFailures(Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // The executor silently stops a task which throws, like a Timer, but logs nothing
+                Logger.error("Scheduled task failed, stopping it: " + e.getMessage());
+                throw e;
+            }
+        };
+    }
+}
@@ -31,10 +31,15 @@ public class ButtonActionHandler {
      */
 
     public void handleTurnOnAllActuators() {
-        for (SensorActuatorNode node : GreenhouseSimulator.nodes.values()) {
-            if (node != null) {
-                this.simulator.handleAllActuators(node.getId(), true);
+        simulator.beginActuatorBulk();
+        try {
+            for (SensorActuatorNode node : GreenhouseSimulator.nodes.values()) {
+                if (node != null) {
+                    this.simulator.handleAllActuators(node.getId(), true);
+                }
             }
+        } finally {
+            simulator.endActuatorBulk();
         }
     }
 
@@ -43,10 +48,15 @@ public class ButtonActionHandler {
      */
 
     public void handleTurnOffAllActuators() {
-        for (SensorActuatorNode node : GreenhouseSimulator.nodes.values()) {
-            if (node != null) {
-                this.simulator.handleAllActuators(node.getId(), false);
+        simulator.beginActuatorBulk();
+        try {
+            for (SensorActuatorNode node : GreenhouseSimulator.nodes.values()) {
+                if (node != null) {
+                    this.simulator.handleAllActuators(node.getId(), false);
+                }
             }
+        } finally {
+            simulator.endActuatorBulk();
         }
     }
 
@@ -58,7 +68,7 @@ public class ButtonActionHandler {
         SensorActuatorNode sensorActuatorNode = GreenhouseSimulator.nodes.get(nodeId);
         if (sensorActuatorNode != null) {
             sensorActuatorNode.setActuator(actuatorId, state);
-            simulator.broadcastActuatorStateChange(actuatorId,nodeId,!state);
+            simulator.actuatorStateChanged(nodeId, actuatorId, state);
         }
     }
 
@@ -115,12 +125,17 @@ public class ButtonActionHandler {
      */
     public void handleTurnOffActuatorsByType(String type, boolean trueOrFalse) {
         if (type != null) {
-            GreenhouseSimulator.nodes.values().forEach(node -> node.getActuators().forEach(actuator -> {
-                if (actuator.getType().equalsIgnoreCase(type)) {
-                    actuator.set(trueOrFalse);
-                    simulator.broadcastActuatorStateChange(actuator.getId(),node.getId(),!trueOrFalse);
-                }
-            }));
+            simulator.beginActuatorBulk();
+            try {
+                GreenhouseSimulator.nodes.values().forEach(node -> node.getActuators().forEach(actuator -> {
+                    if (actuator.getType().equalsIgnoreCase(type)) {
+                        actuator.set(trueOrFalse);
+                        simulator.actuatorStateChanged(node.getId(), actuator.getId(), trueOrFalse);
+                    }
+                }));
+            } finally {
+                simulator.endActuatorBulk();
+            }
         }
     }
 }
\ No newline at end of file
@@ -2,12 +2,15 @@ package no.ntnu.gui.greenhouse;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.OptionalLong;
 
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.stage.Stage;
+import no.ntnu.endclients.SlowConsumerPolicy;
 import no.ntnu.greenhouse.GreenhouseSimulator;
 import no.ntnu.greenhouse.SensorActuatorNode;
+import no.ntnu.greenhouse.ServerMode;
 import no.ntnu.listeners.greenhouse.NodeStateListener;
 import no.ntnu.tools.Logger;
 
@@ -56,11 +59,18 @@ public class GreenhouseApplication extends Application implements NodeStateListe
     /**
      * Start the GUI Application.
      *
-     * @param fake When true, emulate fake events instead of opening real sockets
+     * @param fake       When true, emulate fake events instead of opening real sockets
+     * @param serverMode How the server handles the client connections
+     * @param slowConsumerPolicy What happens to clients which read their messages too slowly
+     * @param seed       The greenhouse seed making the simulation repeatable, if any
      */
-    public static void startApp(boolean fake) {
+    public static void startApp(boolean fake, ServerMode serverMode,
+                                SlowConsumerPolicy slowConsumerPolicy, OptionalLong seed) {
         Logger.info("Running greenhouse simulator with JavaFX GUI...");
         simulator = new GreenhouseSimulator(fake);
+        simulator.setServerMode(serverMode);
+        simulator.setSlowConsumerPolicy(slowConsumerPolicy);
+        seed.ifPresent(simulator::setSeed);
         launch();
     }
 
@@ -84,7 +94,7 @@ public class GreenhouseApplication extends Application implements NodeStateListe
      */
     @Override
     public void onNodeStopped(SensorActuatorNode node) {
-        simulator.getMap().keySet().remove(node.getId());
+        simulator.removeNode(node.getId());
         NodeGuiWindow window = nodeWindows.remove(node);
         if (window != null) {
             Platform.runLater(window::close);
@@ -186,13 +186,15 @@ public class NodeGuiWindow extends Stage implements SensorListener, ActuatorList
     @Override
     public void sensorsUpdated(List<Sensor> sensors) {
         System.out.println(" Sensors updated");
+        // The labels are updated later on the JavaFX thread, from readings which do not change
+        List<SensorReading> readings = node.getSensorSnapshot();
         if (sensorPane != null) {
-            sensorPane.update(sensors);
+            sensorPane.update(readings);
         }
 
-        for (Sensor sensor : sensors) {
-            if (sensor.getType().equals("temperature")) {
-                updateGraphWithSensorData(sensor.getReading().getValue());
+        for (int i = 0; i < readings.size(); i++) {
+            if (sensors.get(i).getTypeId() == DeviceTypeRegistry.TEMPERATURE) {
+                updateGraphWithSensorData(readings.get(i).getValue());
             }
         }
     }
@@ -0,0 +1,19 @@
+package no.ntnu.listeners.greenhouse;
+
+import java.util.List;
+
+import no.ntnu.greenhouse.SensorActuatorNode;
+
+/**
+ * Listener for the steps of a greenhouse running in synchronized-step mode, where all the
+ * nodes get new sensor values together.
+ */
+public interface SimulationStepListener {
+    /**
+     * An event that is fired once per step, after all the nodes have new sensor values.
+     *
+     * @param step  The number of the step, starting at 1
+     * @param nodes The nodes which were advanced in this step
+     */
+    void stepCompleted(long step, List<SensorActuatorNode> nodes);
+}
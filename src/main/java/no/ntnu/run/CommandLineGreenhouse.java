@@ -1,18 +1,39 @@
 package no.ntnu.run;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.OptionalLong;
+import no.ntnu.endclients.SlowConsumerPolicy;
 import no.ntnu.greenhouse.GreenhouseSimulator;
+import no.ntnu.greenhouse.GreenhouseTopology;
+import no.ntnu.greenhouse.ServerMode;
 import no.ntnu.tools.Logger;
 
 /**
  * Run a greenhouse simulation using command-line interface (no GUI).
  */
 public class CommandLineGreenhouse {
+    private static final String VIRTUAL_ARGUMENT_PREFIX = "virtual=";
+    private static final String STEP_ARGUMENT = "step";
+    private static final String TOPOLOGY_ARGUMENT_PREFIX = "topology=";
+
     /**
      * Application entrypoint for the command-line version of the simulator.
      *
      * @param args Command line arguments, only the first one of them used: when it is "fake",
      *             emulate fake events, when it is either something else or not present,
-     *             use real socket communication.
+     *             use real socket communication. When one of them is "nio", the server uses
+     *             non-blocking channels instead of one thread per client. "slowConsumer=merge"
+     *             or "slowConsumer=disconnect" choose what happens to clients which read too
+     *             slowly, see {@link SlowConsumerPolicy}. "seed=number" makes the sensor values
+     *             the same every run. "virtual=duration", with an ISO-8601 duration like
+     *             "P30D", simulates that much time as fast as possible, without a server.
+     *             "step" advances all the nodes together, in parallel. "topology=file" builds
+     *             the nodes defined in a properties file, see {@link GreenhouseTopology},
+     *             instead of the three default nodes.
      */
     public static void main(String[] args) {
         Logger.info("Running greenhouse simulator in command line (without GUI)...");
@@ -22,7 +43,70 @@ public class CommandLineGreenhouse {
             Logger.info("Using FAKE events");
         }
         GreenhouseSimulator simulator = new GreenhouseSimulator(fake);
-        simulator.initialize();
-        simulator.start();
+        simulator.setServerMode(ServerMode.fromArgs(args));
+        simulator.setSlowConsumerPolicy(SlowConsumerPolicy.fromArgs(args));
+        GreenhouseTopology topology = null;
+        String topologyFile = argumentValue(args, TOPOLOGY_ARGUMENT_PREFIX);
+        if (topologyFile != null) {
+            try {
+                topology = GreenhouseTopology.load(Path.of(topologyFile));
+            } catch (IOException | IllegalArgumentException e) {
+                Logger.error("Could not read the greenhouse topology " + topologyFile + ": "
+                        + e.getMessage());
+                return;
+            }
+        }
+        OptionalLong seed = GreenhouseSimulator.seedFromArgs(args);
+        if (seed.isEmpty() && topology != null) {
+            seed = topology.getSeed();
+        }
+        seed.ifPresent(simulator::setSeed);
+        simulator.setSynchronizedStep(Arrays.asList(args).contains(STEP_ARGUMENT));
+        if (topology != null) {
+            simulator.initialize(topology);
+        } else {
+            simulator.initialize();
+        }
+        Duration virtualDuration = virtualDurationFromArgs(args);
+        if (virtualDuration != null) {
+            simulator.runVirtual(virtualDuration.toMillis());
+        } else {
+            simulator.start();
+        }
+    }
+
+    /**
+     * Find the amount of virtual time to simulate given as a command line argument.
+     *
+     * @param args The command line arguments
+     * @return The duration of a "virtual=duration" argument, null when there is none or it is
+     *         invalid
+     */
+    private static Duration virtualDurationFromArgs(String[] args) {
+        String duration = argumentValue(args, VIRTUAL_ARGUMENT_PREFIX);
+        if (duration != null) {
+            try {
+                return Duration.parse(duration);
+            } catch (DateTimeParseException e) {
+                Logger.error("Invalid virtual duration, expected for example P30D: " + duration);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the value of a "name=value" command line argument.
+     *
+     * @param args   The command line arguments
+     * @param prefix The name of the argument, followed by "="
+     * @return The value of the first such argument, null when there is none
+     */
+    private static String argumentValue(String[] args, String prefix) {
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) {
+                return arg.substring(prefix.length());
+            }
+        }
+        return null;
     }
 }
@@ -5,11 +5,6 @@ import no.ntnu.controlpanel.ControlPanelLogic;
 import no.ntnu.controlpanel.ControlPanelSocket;
 import no.ntnu.gui.controlpanel.ControlPanelApplication;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
-import static java.lang.Thread.sleep;
-
 /**
  * Starter class for the control panel.
  * Note: we could launch the Application class directly, but then we would have issues with the
@@ -54,42 +49,7 @@ public class ControlPanelStarter {
      * @return The communicationChannel.
      */
     private ControlPanelSocket initiateCommunication(ControlPanelLogic logic) {
-        ControlPanelSocket channel = initiateSocketCommunication(logic);
-        initiateCommunicationThread();
-
-        return channel;
-    }
-
-    /**
-     * Initiates the listening loop for the server communications.
-     */
-    private void initiateCommunicationThread() {
-        Thread serverThread = new Thread(this::initiateRealCommunication);
-        serverThread.start();
-    }
-
-    /**
-     * Starts the communication listening loop. Waits x amount of milliseconds before running runThread() again.
-     * Change the period of waiting if the scale of the application is larger or smaller.
-     */
-    private void initiateRealCommunication() {
-
-        while (socket == null || !socket.isOpen()) {
-            try {
-                sleep(300);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
-        }
-
-        Timer timer = new Timer();
-        timer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                socket.runThread();
-            }
-        }, 0, 1);
-        
+        return initiateSocketCommunication(logic);
     }
 
     /**
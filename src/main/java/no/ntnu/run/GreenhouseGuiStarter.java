@@ -1,5 +1,8 @@
 package no.ntnu.run;
 
+import no.ntnu.endclients.SlowConsumerPolicy;
+import no.ntnu.greenhouse.GreenhouseSimulator;
+import no.ntnu.greenhouse.ServerMode;
 import no.ntnu.gui.greenhouse.GreenhouseApplication;
 import no.ntnu.tools.Logger;
 
@@ -12,7 +15,11 @@ public class GreenhouseGuiStarter {
      *
      * @param args Command line arguments, only the first one of them used: when it is "fake",
      *             emulate fake events, when it is either something else or not present,
-     *             use real socket communication.
+     *             use real socket communication. When one of them is "nio", the server uses
+     *             non-blocking channels instead of one thread per client. "slowConsumer=merge"
+     *             or "slowConsumer=disconnect" choose what happens to clients which read too
+     *             slowly, see {@link SlowConsumerPolicy}. "seed=number" makes the sensor values
+     *             the same every run.
      */
     public static void main(String[] args) {
         boolean fake = false;
@@ -20,6 +27,7 @@ public class GreenhouseGuiStarter {
             fake = true;
             Logger.info("Using FAKE events");
         }
-        GreenhouseApplication.startApp(fake);
+        GreenhouseApplication.startApp(fake, ServerMode.fromArgs(args),
+                SlowConsumerPolicy.fromArgs(args), GreenhouseSimulator.seedFromArgs(args));
     }
 }
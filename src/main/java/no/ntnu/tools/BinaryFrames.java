@@ -0,0 +1,186 @@
+package no.ntnu.tools;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import no.ntnu.greenhouse.ActuatorChange;
+
+/**
+ * The binary wire protocol, negotiated in the session key handshake as an alternative to the
+ * base64 text lines. Every frame is a 4-byte big-endian length, a key byte telling which key
+ * the rest is encrypted with, and the encrypted body (IV, cipher text and tag). The length
+ * counts the key byte and the encrypted body.
+ * The decrypted body starts with an opcode. Sensor data and actuator changes have their own
+ * opcodes with int and double fields; every other message of the text protocol is carried
+ * unchanged in a {@link #TEXT} frame.
+ */
+public class BinaryFrames {
+
+    /**
+     * Appended to the session key handshake by clients asking for binary frames.
+     */
+    public static final String HANDSHAKE_OPTION = ",binary";
+
+    /**
+     * The size of the length and the key byte in front of every frame.
+     */
+    public static final int HEADER_LENGTH = 5;
+
+    /**
+     * The largest frame accepted, counting the key byte and the encrypted body, and so the
+     * largest frame ever sent. As large as the longest line of the text protocol, see
+     * {@link EncrypterDecrypter#MAX_LINE_LENGTH}.
+     */
+    public static final int MAX_FRAME_LENGTH = EncrypterDecrypter.MAX_LINE_LENGTH;
+
+    /**
+     * Key byte of frames encrypted with the session key of the connection.
+     */
+    public static final byte SESSION_KEY = 0;
+
+    /**
+     * Key byte of frames encrypted with the broadcast key, shared by all clients.
+     */
+    public static final byte GROUP_KEY = 1;
+
+    /**
+     * A message of the text protocol, UTF-8 encoded.
+     */
+    public static final byte TEXT = 1;
+
+    /**
+     * Sensor readings: request ID (0 when pushed), node count, then per node the node ID,
+     * the sensor count and per sensor the type, the value as a double and the unit.
+     */
+    public static final byte SENSORS = 2;
+
+    /**
+     * Actuator changes from a client: request ID (0 when no acknowledgement is wanted),
+     * change count, then per change the node ID, the actuator ID and 1 for on or 0 for off.
+     */
+    public static final byte SET_ACTUATORS = 3;
+
+    /**
+     * New actuator states from the server: state count, then per state the node ID, the
+     * actuator ID and 1 for on or 0 for off.
+     */
+    public static final byte ACTUATOR_STATES = 4;
+
+    private BinaryFrames() {
+    }
+
+    /**
+     * Create the body of a text frame.
+     *
+     * @param message The message, encoded as UTF-8
+     * @return The opcode followed by the message
+     */
+    public static byte[] text(byte[] message) {
+        byte[] body = new byte[1 + message.length];
+        body[0] = TEXT;
+        System.arraycopy(message, 0, body, 1, message.length);
+        return body;
+    }
+
+    /**
+     * Create the body of a text frame.
+     *
+     * @param message The message
+     * @return The opcode followed by the message
+     */
+    public static byte[] text(String message) {
+        return text(message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Create the body of a frame changing actuators.
+     *
+     * @param requestId The ID of the request, 0 when no acknowledgement is wanted
+     * @param changes   The actuator changes
+     * @return The frame body
+     */
+    public static byte[] setActuators(int requestId, List<ActuatorChange> changes) {
+        ByteBuffer body = ByteBuffer.allocate(9 + changes.size() * 9);
+        body.put(SET_ACTUATORS).putInt(requestId);
+        putActuatorChanges(body, changes);
+        return body.array();
+    }
+
+    /**
+     * Create the body of a frame with new actuator states.
+     *
+     * @param states The new actuator states
+     * @return The frame body
+     */
+    public static byte[] actuatorStates(List<ActuatorChange> states) {
+        ByteBuffer body = ByteBuffer.allocate(5 + states.size() * 9);
+        body.put(ACTUATOR_STATES);
+        putActuatorChanges(body, states);
+        return body.array();
+    }
+
+    /**
+     * Write a count followed by actuator changes.
+     *
+     * @param body    The buffer to write to
+     * @param changes The actuator changes
+     */
+    private static void putActuatorChanges(ByteBuffer body, List<ActuatorChange> changes) {
+        body.putInt(changes.size());
+        for (ActuatorChange change : changes) {
+            body.putInt(change.getNodeId()).putInt(change.getActuatorId())
+                    .put((byte) (change.isOn() ? 1 : 0));
+        }
+    }
+
+    /**
+     * Read a count followed by actuator changes.
+     *
+     * @param body The frame body, positioned at the count
+     * @return The actuator changes
+     * @throws java.nio.BufferUnderflowException If the frame is too short
+     */
+    public static List<ActuatorChange> readActuatorChanges(ByteBuffer body) {
+        int count = body.getInt();
+        if (count < 0 || count > body.remaining() / 9) {
+            throw new IllegalArgumentException("Invalid actuator count: " + count);
+        }
+        List<ActuatorChange> changes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            changes.add(new ActuatorChange(body.getInt(), body.getInt(), body.get() != 0));
+        }
+        return changes;
+    }
+
+    /**
+     * Read a string written as a one-byte length followed by UTF-8 bytes.
+     *
+     * @param body The frame body, positioned at the length
+     * @return The string
+     */
+    public static String readString(ByteBuffer body) {
+        int length = body.get() & 0xff;
+        String text = new String(body.array(), body.arrayOffset() + body.position(), length,
+                StandardCharsets.UTF_8);
+        body.position(body.position() + length);
+        return text;
+    }
+
+    /**
+     * Read the length of the next frame from its header.
+     *
+     * @param header The bytes of the header
+     * @param offset Where the header starts
+     * @return The length of the key byte and the encrypted body
+     * @throws IllegalArgumentException If the length is not valid
+     */
+    public static int readLength(byte[] header, int offset) {
+        int length = ((header[offset] & 0xff) << 24) | ((header[offset + 1] & 0xff) << 16)
+                | ((header[offset + 2] & 0xff) << 8) | (header[offset + 3] & 0xff);
+        if (length < 1 || length > MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Invalid frame length: " + length);
+        }
+        return length;
+    }
+}
@@ -1,17 +1,65 @@
 package no.ntnu.tools;
 
 import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
 import java.util.Base64;
 
 /**
  * Tools for encrypting and decrypting messages. Uses pre-defined keys for both encryption and decryption.
+ * The RSA keys are only meant for exchanging a per-connection AES session key, after which the
+ * messages are encrypted with AES-GCM, which has no limit on the message size.
  */
 public class EncrypterDecrypter {
 
+    /**
+     * The prefix of the handshake message carrying the session key from the client.
+     */
+    public static final String SESSION_KEY_PREFIX = "sessionKey:";
+
+    /**
+     * The message the server answers a handshake with, encrypted with the new session key.
+     */
+    public static final String SESSION_ESTABLISHED = "sessionEstablished";
+
+    /**
+     * The prefix of the message carrying the broadcast key, sent by the server right after
+     * {@link #SESSION_ESTABLISHED}, encrypted with the session key.
+     */
+    public static final String GROUP_KEY_PREFIX = "groupKey:";
+
+    /**
+     * Marks a line encrypted with the broadcast key instead of the session key. Base64 never
+     * contains it, so it can not be confused with the start of an ordinary line.
+     */
+    public static final char GROUP_LINE_MARKER = '*';
+
+    /**
+     * The longest line accepted, without the line terminator, and so the longest line ever
+     * sent. The sensor readings of all the nodes of a greenhouse with 50 000 nodes take about
+     * 4 MB once encrypted, this leaves room for many times more.
+     */
+    public static final int MAX_LINE_LENGTH = 64 * 1024 * 1024;
+
+    private static final String SESSION_ALGORITHM = "AES";
+    private static final int SESSION_KEY_BITS = 256;
+    private static final SecureRandom secureRandom = new SecureRandom();
+    private static final ThroughputCounter throughput = new ThroughputCounter("crypto");
+
+    /**
+     * RSA cipher contexts, created and initialised once per thread instead of once per message.
+     */
+    private static final ThreadLocal<Cipher> rsaEncryptCipher =
+            ThreadLocal.withInitial(() -> createRsaCipher(Cipher.ENCRYPT_MODE));
+    private static final ThreadLocal<Cipher> rsaDecryptCipher =
+            ThreadLocal.withInitial(() -> createRsaCipher(Cipher.DECRYPT_MODE));
+
     private static PublicKey publicKey;
     private static PrivateKey privateKey;
 
@@ -45,6 +93,22 @@ public class EncrypterDecrypter {
 
     }
 
+    /**
+     * Creates an RSA cipher context, initialised with the pre-defined keys.
+     *
+     * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @return the cipher context
+     */
+    private static Cipher createRsaCipher(int mode) {
+        try {
+            Cipher cipher = Cipher.getInstance("RSA");
+            cipher.init(mode, mode == Cipher.ENCRYPT_MODE ? publicKey : privateKey);
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("RSA is not available", e);
+        }
+    }
+
     /**
      * Generates a new public and private keypair with RSA cryptography.
      */
@@ -68,10 +132,9 @@ public class EncrypterDecrypter {
     public static String encryptMessage(String message) {
         String encryptedMessage = null;
         try {
-            Cipher cipher = Cipher.getInstance("RSA");
-            cipher.init(Cipher.ENCRYPT_MODE, publicKey);
-
-            byte[] encryptedBytes = cipher.doFinal(message.getBytes());
+            byte[] messageBytes = message.getBytes();
+            byte[] encryptedBytes = rsaEncryptCipher.get().doFinal(messageBytes);
+            throughput.add(messageBytes.length);
 
             encryptedMessage = Base64.getEncoder().encodeToString(encryptedBytes);
 
@@ -94,9 +157,8 @@ public class EncrypterDecrypter {
         String decryptedMessage = null;
 
         try {
-            Cipher cipher = Cipher.getInstance("RSA");
-            cipher.init(Cipher.DECRYPT_MODE, privateKey);
-            byte[] decryptedBytes = cipher.doFinal(Base64.getDecoder().decode(message));
+            byte[] decryptedBytes = rsaDecryptCipher.get().doFinal(Base64.getDecoder().decode(message));
+            throughput.add(decryptedBytes.length);
 
             decryptedMessage = new String(decryptedBytes);
 
@@ -107,6 +169,138 @@ public class EncrypterDecrypter {
         return decryptedMessage;
     }
 
+    /**
+     * Generates a new random AES key to be used for one connection.
+     *
+     * @return the session key, or null if AES is not available
+     */
+    public static SecretKey generateSessionKey() {
+        try {
+            KeyGenerator keyGenerator = KeyGenerator.getInstance(SESSION_ALGORITHM);
+            keyGenerator.init(SESSION_KEY_BITS, secureRandom);
+            return keyGenerator.generateKey();
+        } catch (NoSuchAlgorithmException e) {
+            Logger.error("Error generating a session key: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Creates the handshake message which carries the session key to the server.
+     * The handshake itself is encrypted with RSA, since it is small enough.
+     *
+     * @param sessionKey the session key to send
+     * @return the encrypted handshake message
+     */
+    public static String createHandshake(SecretKey sessionKey) {
+        return createHandshake(sessionKey, false);
+    }
+
+    /**
+     * Creates the handshake message which carries the session key to the server, optionally
+     * asking for the binary protocol, see {@link BinaryFrames}.
+     *
+     * @param sessionKey the session key to send
+     * @param binary     true to ask the server for binary frames
+     * @return the encrypted handshake message
+     */
+    public static String createHandshake(SecretKey sessionKey, boolean binary) {
+        String encodedKey = Base64.getEncoder().encodeToString(sessionKey.getEncoded());
+        String handshake = SESSION_KEY_PREFIX + encodedKey;
+        return encryptMessage(binary ? handshake + BinaryFrames.HANDSHAKE_OPTION : handshake);
+    }
+
+    /**
+     * Reads the session key out of a decrypted handshake message.
+     *
+     * @param handshake the decrypted handshake message
+     * @return the session key, or null if the message is not a valid handshake
+     */
+    public static SecretKey readHandshake(String handshake) {
+        if (handshake != null && handshake.endsWith(BinaryFrames.HANDSHAKE_OPTION)) {
+            handshake = handshake.substring(0, handshake.length() - BinaryFrames.HANDSHAKE_OPTION.length());
+        }
+        return readKey(SESSION_KEY_PREFIX, handshake);
+    }
+
+    /**
+     * Creates the message which carries the broadcast key to a client. Must be sent encrypted
+     * with the session key of the client.
+     *
+     * @param groupKey the broadcast key of the server
+     * @return the plain text message
+     */
+    public static String createGroupKeyMessage(SecretKey groupKey) {
+        return GROUP_KEY_PREFIX + Base64.getEncoder().encodeToString(groupKey.getEncoded());
+    }
+
+    /**
+     * Reads the broadcast key out of a decrypted group key message.
+     *
+     * @param message the decrypted message
+     * @return the broadcast key, or null if the message is not a valid group key message
+     */
+    public static SecretKey readGroupKeyMessage(String message) {
+        return readKey(GROUP_KEY_PREFIX, message);
+    }
+
+    /**
+     * Reads a base64 encoded AES key following a prefix.
+     *
+     * @param prefix  the prefix the message must start with
+     * @param message the decrypted message
+     * @return the key, or null if the message is not valid
+     */
+    private static SecretKey readKey(String prefix, String message) {
+        if (message == null || !message.startsWith(prefix)) {
+            return null;
+        }
+        try {
+            byte[] keyBytes = Base64.getDecoder().decode(message.substring(prefix.length()));
+            return new SecretKeySpec(keyBytes, SESSION_ALGORITHM);
+        } catch (IllegalArgumentException e) {
+            Logger.error("Invalid key: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Creates the cipher contexts for a session key.
+     *
+     * @param sessionKey the AES session key
+     * @return the session cipher, or null if AES-GCM is not available
+     */
+    public static SessionCipher createSessionCipher(SecretKey sessionKey) {
+        try {
+            return new SessionCipher(sessionKey);
+        } catch (GeneralSecurityException e) {
+            Logger.error("Error creating the session cipher: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Encodes encrypted bytes as one line of the text protocol.
+     *
+     * @param encrypted the encrypted bytes
+     * @return the base64 encoded bytes followed by a newline
+     */
+    public static byte[] toLine(byte[] encrypted) {
+        byte[] encoded = Base64.getEncoder().encode(encrypted);
+        byte[] line = Arrays.copyOf(encoded, encoded.length + 1);
+        line[encoded.length] = '\n';
+        return line;
+    }
+
+    /**
+     * Returns the counter of all messages encrypted and decrypted by this application.
+     *
+     * @return the throughput counter of the crypto layer
+     */
+    public static ThroughputCounter getThroughput() {
+        return throughput;
+    }
+
     /**
      * Returns the private key.
      *
@@ -6,6 +6,8 @@ package no.ntnu.tools;
  * places of our code.
  */
 public class Logger {
+    private static volatile boolean infoEnabled = true;
+
     /**
      * Not allowed to create an instance of this class.
      */
@@ -18,7 +20,9 @@ public class Logger {
      * @param message The message to log. A newline is appended automatically.
      */
     public static void info(String message) {
-        System.out.println(message);
+        if (infoEnabled) {
+            System.out.println(message);
+        }
     }
 
     /**
@@ -27,7 +31,27 @@ public class Logger {
      * @param message The message to log
      */
     public static void infoNoNewline(String message) {
-        System.out.print(message);
+        if (infoEnabled) {
+            System.out.print(message);
+        }
+    }
+
+    /**
+     * Turn information messages on or off. Error messages are always logged.
+     *
+     * @param enabled False to drop all information messages
+     */
+    public static void setInfoEnabled(boolean enabled) {
+        infoEnabled = enabled;
+    }
+
+    /**
+     * Check whether information messages are logged, to avoid building messages nobody sees.
+     *
+     * @return True when information messages are logged
+     */
+    public static boolean isInfoEnabled() {
+        return infoEnabled;
     }
 
     /**
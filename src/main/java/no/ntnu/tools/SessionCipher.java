@@ -0,0 +1,241 @@
+package no.ntnu.tools;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * The AES-GCM encryption of one connection. The cipher contexts are created once and re-initialised
+ * with a fresh IV for every message, instead of being looked up for every message.
+ * Encryption and decryption are locked separately, so a reader thread and any number of writer
+ * threads can share one instance.
+ * An encrypted message is the IV followed by the cipher text and the authentication tag.
+ */
+public class SessionCipher {
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+    private static final int TAG_LENGTH = TAG_BITS / 8;
+
+    private final SecretKey key;
+    private final Cipher encryptCipher;
+    private final Cipher decryptCipher;
+    private final SecureRandom random = new SecureRandom();
+    private final byte[] iv = new byte[IV_LENGTH];
+
+    /**
+     * Create the cipher contexts for one connection.
+     *
+     * @param key The AES session key
+     * @throws GeneralSecurityException If AES-GCM is not available
+     */
+    public SessionCipher(SecretKey key) throws GeneralSecurityException {
+        this.key = key;
+        this.encryptCipher = Cipher.getInstance(TRANSFORMATION);
+        this.decryptCipher = Cipher.getInstance(TRANSFORMATION);
+    }
+
+    /**
+     * Get the session key.
+     *
+     * @return The AES session key
+     */
+    public SecretKey getKey() {
+        return key;
+    }
+
+    /**
+     * Get the size of a message once encrypted.
+     *
+     * @param plainTextLength The size of the plain text
+     * @return The size of the IV, cipher text and tag together
+     */
+    public static int getEncryptedLength(int plainTextLength) {
+        return IV_LENGTH + plainTextLength + TAG_LENGTH;
+    }
+
+    /**
+     * Encrypt a message.
+     *
+     * @param plainText The bytes to encrypt
+     * @param offset    Where the message starts in the array
+     * @param length    The length of the message
+     * @return The IV, cipher text and tag
+     * @throws GeneralSecurityException If the message could not be encrypted
+     */
+    public byte[] encrypt(byte[] plainText, int offset, int length) throws GeneralSecurityException {
+        byte[] output = new byte[getEncryptedLength(length)];
+        synchronized (encryptCipher) {
+            initEncryption();
+            System.arraycopy(iv, 0, output, 0, IV_LENGTH);
+            encryptCipher.doFinal(plainText, offset, length, output, IV_LENGTH);
+        }
+        EncrypterDecrypter.getThroughput().add(length);
+        return output;
+    }
+
+    /**
+     * Encrypt a message directly from one buffer into another.
+     *
+     * @param plainText The bytes to encrypt, from the position to the limit
+     * @param output    The buffer to write the IV, cipher text and tag into
+     * @return The number of bytes written to the output
+     * @throws GeneralSecurityException If the message could not be encrypted, or the output is
+     *                                  too small
+     */
+    public int encrypt(ByteBuffer plainText, ByteBuffer output) throws GeneralSecurityException {
+        int length = plainText.remaining();
+        int written;
+        synchronized (encryptCipher) {
+            initEncryption();
+            output.put(iv);
+            written = IV_LENGTH + encryptCipher.doFinal(plainText, output);
+        }
+        EncrypterDecrypter.getThroughput().add(length);
+        return written;
+    }
+
+    /**
+     * Pick a new random IV and initialise the encryption cipher with it. GCM must never see
+     * the same IV twice with the same key.
+     *
+     * @throws GeneralSecurityException If the cipher can not be initialised
+     */
+    private void initEncryption() throws GeneralSecurityException {
+        random.nextBytes(iv);
+        encryptCipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+    }
+
+    /**
+     * Decrypt a message.
+     *
+     * @param encrypted The IV, cipher text and tag
+     * @param offset    Where the message starts in the array
+     * @param length    The length of the encrypted message
+     * @return The plain text
+     * @throws GeneralSecurityException If the message could not be decrypted or was tampered with
+     */
+    public byte[] decrypt(byte[] encrypted, int offset, int length) throws GeneralSecurityException {
+        byte[] plainText;
+        synchronized (decryptCipher) {
+            decryptCipher.init(Cipher.DECRYPT_MODE, key,
+                    new GCMParameterSpec(TAG_BITS, encrypted, offset, IV_LENGTH));
+            plainText = decryptCipher.doFinal(encrypted, offset + IV_LENGTH, length - IV_LENGTH);
+        }
+        EncrypterDecrypter.getThroughput().add(plainText.length);
+        return plainText;
+    }
+
+    /**
+     * Encrypt a message and encode it as one line of the text protocol.
+     *
+     * @param message The message, encoded as UTF-8
+     * @return The base64 line, including the line terminator, or null if encryption failed
+     */
+    public byte[] encryptToLine(byte[] message) {
+        try {
+            byte[] encrypted = encrypt(message, 0, message.length);
+            return EncrypterDecrypter.toLine(encrypted);
+        } catch (GeneralSecurityException e) {
+            Logger.error("Error encrypting the command: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Encrypt the body of a binary frame and put the frame header in front of it.
+     *
+     * @param body    The frame body, starting with the opcode
+     * @param keyByte Which key this cipher is, see {@link BinaryFrames#SESSION_KEY}
+     * @return The whole frame, or null if encryption failed
+     */
+    public byte[] encryptToFrame(byte[] body, byte keyByte) {
+        int encryptedLength = getEncryptedLength(body.length);
+        byte[] frame = new byte[BinaryFrames.HEADER_LENGTH + encryptedLength];
+        ByteBuffer.wrap(frame).putInt(1 + encryptedLength).put(keyByte);
+        try {
+            synchronized (encryptCipher) {
+                initEncryption();
+                System.arraycopy(iv, 0, frame, BinaryFrames.HEADER_LENGTH, IV_LENGTH);
+                encryptCipher.doFinal(body, 0, body.length, frame,
+                        BinaryFrames.HEADER_LENGTH + IV_LENGTH);
+            }
+        } catch (GeneralSecurityException e) {
+            Logger.error("Error encrypting the frame: " + e.getMessage());
+            return null;
+        }
+        EncrypterDecrypter.getThroughput().add(body.length);
+        return frame;
+    }
+
+    /**
+     * Encrypts and returns the input message.
+     *
+     * @param message the message to be encrypted
+     * @return the encrypted message, base64 encoded, or null if encryption failed
+     */
+    public String encryptMessage(String message) {
+        try {
+            byte[] plainText = message.getBytes(StandardCharsets.UTF_8);
+            return Base64.getEncoder().encodeToString(encrypt(plainText, 0, plainText.length));
+        } catch (GeneralSecurityException e) {
+            Logger.error("Error encrypting the command: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Decrypts and returns one base64 line of the text protocol.
+     *
+     * @param line   The bytes of the line
+     * @param offset Where the line starts in the array
+     * @param length The length of the line, without the terminator
+     * @return the decrypted message, or null if it could not be decrypted
+     */
+    public String decryptLine(byte[] line, int offset, int length) {
+        try {
+            ByteBuffer encrypted = Base64.getDecoder().decode(ByteBuffer.wrap(line, offset, length));
+            byte[] plainText = decrypt(encrypted.array(), 0, encrypted.limit());
+            return new String(plainText, StandardCharsets.UTF_8);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            Logger.error("Error decrypting the message: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Decrypts the body of one binary frame.
+     *
+     * @param frame  The bytes of the frame
+     * @param offset Where the encrypted body starts, after the key byte
+     * @param length The length of the encrypted body
+     * @return the frame body, starting with the opcode, or null if it could not be decrypted
+     */
+    public byte[] decryptFrame(byte[] frame, int offset, int length) {
+        try {
+            return decrypt(frame, offset, length);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            Logger.error("Error decrypting the frame: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Decrypts and returns the input message.
+     *
+     * @param message the message to be decrypted, base64 encoded
+     * @return the decrypted message, or null if it could not be decrypted
+     */
+    public String decryptMessage(String message) {
+        if (message == null) {
+            return null;
+        }
+        byte[] line = message.getBytes(StandardCharsets.ISO_8859_1);
+        return decryptLine(line, 0, line.length);
+    }
+}
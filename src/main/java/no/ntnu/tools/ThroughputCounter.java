@@ -0,0 +1,72 @@
+package no.ntnu.tools;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts messages and bytes passing through some part of the application, and calculates the
+ * rate since the previous sample. Counting is cheap and safe from any number of threads.
+ */
+public class ThroughputCounter {
+    private final String name;
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    private long lastSampleTime = System.nanoTime();
+    private long lastSampleMessages;
+    private long lastSampleBytes;
+
+    /**
+     * Create a throughput counter.
+     *
+     * @param name The name of the counter, used when printing it
+     */
+    public ThroughputCounter(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Count one message.
+     *
+     * @param byteCount The size of the message in bytes
+     */
+    public void add(int byteCount) {
+        messages.increment();
+        bytes.add(byteCount);
+    }
+
+    /**
+     * Get the total number of messages counted.
+     *
+     * @return The number of messages
+     */
+    public long getMessageCount() {
+        return messages.sum();
+    }
+
+    /**
+     * Get the total number of bytes counted.
+     *
+     * @return The number of bytes
+     */
+    public long getByteCount() {
+        return bytes.sum();
+    }
+
+    /**
+     * Calculate the rate since the previous sample, and start a new sample.
+     *
+     * @return A human-readable description of the rate, for example "crypto: 120.0 msg/s, 4.2 kB/s"
+     */
+    public synchronized String sample() {
+        long now = System.nanoTime();
+        long messageCount = messages.sum();
+        long byteCount = bytes.sum();
+        double seconds = Math.max(1e-9, (now - lastSampleTime) / 1e9);
+        double messagesPerSecond = (messageCount - lastSampleMessages) / seconds;
+        double kilobytesPerSecond = (byteCount - lastSampleBytes) / seconds / 1024;
+        lastSampleTime = now;
+        lastSampleMessages = messageCount;
+        lastSampleBytes = byteCount;
+        return String.format("%s: %.1f msg/s, %.1f kB/s", name, messagesPerSecond, kilobytesPerSecond);
+    }
+}
@@ -0,0 +1,72 @@
+package no.ntnu.greenhouse;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashSet;
+import java.util.Set;
+import no.ntnu.tools.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the random streams the nodes get from a greenhouse seed.
+ */
+public class DeviceFactoryTest {
+    private static final long SEED = 42;
+    private static final int DRAWS = 10_000;
+
+    private boolean infoEnabled;
+
+    @Before
+    public void disableLogging() {
+        infoEnabled = Logger.isInfoEnabled();
+        Logger.setInfoEnabled(false);
+    }
+
+    @After
+    public void restoreLogging() {
+        Logger.setInfoEnabled(infoEnabled);
+    }
+
+    @Test
+    public void sameSeedGivesSameStream() {
+        DeviceFactory.setSeed(SEED);
+        long[] first = draw(DeviceFactory.createNode(1000, 0, 0, 0, 0, 0));
+        long[] second = draw(DeviceFactory.createNode(1000, 0, 0, 0, 0, 0));
+        assertArrayEquals(first, second);
+    }
+
+    @Test
+    public void neighbouringNodesHaveNonOverlappingStreams() {
+        DeviceFactory.setSeed(SEED);
+        for (int nodeId = 1; nodeId <= 100; nodeId++) {
+            Set<Long> values = new HashSet<>();
+            for (long value : draw(DeviceFactory.createNode(nodeId, 0, 0, 0, 0, 0))) {
+                values.add(value);
+            }
+            int shared = 0;
+            for (long value : draw(DeviceFactory.createNode(nodeId + 1, 0, 0, 0, 0, 0))) {
+                if (values.contains(value)) {
+                    shared++;
+                }
+            }
+            assertEquals("Values shared by nodes " + nodeId + " and " + (nodeId + 1), 0, shared);
+        }
+    }
+
+    /**
+     * Draw the first values of the random stream of a node.
+     *
+     * @param node The node, with no sensors, so its stream is unused
+     * @return The values
+     */
+    private static long[] draw(SensorActuatorNode node) {
+        long[] values = new long[DRAWS];
+        for (int i = 0; i < DRAWS; i++) {
+            values[i] = node.getRandom().nextLong();
+        }
+        return values;
+    }
+}
@@ -0,0 +1,85 @@
+package no.ntnu.greenhouse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import no.ntnu.endclients.ClientHandler;
+import no.ntnu.tools.BinaryFrames;
+import no.ntnu.tools.EncrypterDecrypter;
+import no.ntnu.tools.Logger;
+import no.ntnu.tools.SessionCipher;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Builds the sample greenhouse of 50 000 nodes and checks that the largest messages sent to a
+ * control panel, all the sensor readings and the node list, fit in one line and in one frame.
+ */
+public class LargeGreenhousePayloadTest {
+    private static final Path TOPOLOGY = Path.of("greenhouse-topology.properties");
+    private static final int OLD_LIMIT = 1024 * 1024;
+
+    private static boolean infoEnabled;
+    private static GreenhouseSimulator simulator;
+    private static SessionCipher cipher;
+
+    @BeforeClass
+    public static void buildGreenhouse() throws IOException {
+        infoEnabled = Logger.isInfoEnabled();
+        Logger.setInfoEnabled(false);
+        simulator = new GreenhouseSimulator(true);
+        GreenhouseTopology topology = GreenhouseTopology.load(TOPOLOGY);
+        assertEquals(50_000, topology.getNodeCount());
+        simulator.initialize(topology);
+        cipher = EncrypterDecrypter.createSessionCipher(EncrypterDecrypter.generateSessionKey());
+    }
+
+    @AfterClass
+    public static void restoreLogging() {
+        Logger.setInfoEnabled(infoEnabled);
+    }
+
+    @Test
+    public void allSensorReadingsFitInOneLine() {
+        byte[] message = simulator.encodeSensorsSince(ClientHandler.SENSOR_UPDATE_PREFIX, -1);
+        assertFitsInLine(cipher.encryptToLine(message));
+    }
+
+    @Test
+    public void allSensorReadingsFitInOneFrame() {
+        assertFitsInFrame(cipher.encryptToFrame(simulator.encodeSensorFrameSince(0, -1),
+                BinaryFrames.SESSION_KEY));
+    }
+
+    @Test
+    public void nodeListFitsInOneLineAndFrame() {
+        byte[] nodes = simulator.getTopology().getBytes();
+        assertFitsInLine(cipher.encryptToLine(nodes));
+        assertFitsInFrame(cipher.encryptToFrame(BinaryFrames.text(nodes), BinaryFrames.SESSION_KEY));
+    }
+
+    /**
+     * Check that an encrypted line is longer than the old limit, but accepted by the readers.
+     *
+     * @param line The line, including the line terminator
+     */
+    private static void assertFitsInLine(byte[] line) {
+        int length = line.length - 1;
+        assertTrue("Line of " + length + " bytes is not large", length > OLD_LIMIT);
+        assertTrue("Line of " + length + " bytes is too long",
+                length <= EncrypterDecrypter.MAX_LINE_LENGTH);
+    }
+
+    /**
+     * Check that an encrypted frame is longer than the old limit, but accepted by the readers.
+     *
+     * @param frame The whole frame, with its header
+     */
+    private static void assertFitsInFrame(byte[] frame) {
+        assertTrue("Frame of " + frame.length + " bytes is not large", frame.length > OLD_LIMIT);
+        assertEquals(frame.length - BinaryFrames.HEADER_LENGTH + 1, BinaryFrames.readLength(frame, 0));
+    }
+}
@@ -0,0 +1,236 @@
+package no.ntnu.greenhouse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import no.ntnu.tools.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Hammers one node with a writer, an actuator toggler and several readers, and checks that
+ * every snapshot from {@link SensorActuatorNode#readSensorValues(double[])} holds exactly the
+ * values written with its version: never a mix of two writes, never new values with an old
+ * version, never a version going backwards, and never a value out of the bounds of its sensor.
+ * Also checks that actuators changed by several threads at once leave the sensor rates
+ * matching the actuator states.
+ */
+public class SensorActuatorNodeStressTest {
+    private static final long RUN_TIME = 500;
+    private static final int READER_COUNT = 3;
+    private static final int TOGGLER_COUNT = 2;
+
+    private boolean infoEnabled;
+    private SensorStore store;
+    private SensorActuatorNode node;
+    private final Map<Long, double[]> valuesByVersion = new ConcurrentHashMap<>();
+
+    @Before
+    public void createNode() {
+        infoEnabled = Logger.isInfoEnabled();
+        Logger.setInfoEnabled(false);
+        store = new SensorStore();
+        node = new SensorActuatorNode(1, store, new SplittableRandom(42));
+        node.addSensors(DeviceFactory.createTemperatureSensor(node.getRandom()), 4);
+        node.addSensors(DeviceFactory.createHumiditySensor(node.getRandom()), 4);
+        node.addActuator(DeviceFactory.createWindow(node.getId()));
+        node.addActuator(DeviceFactory.createFan(node.getId()));
+        node.addActuator(DeviceFactory.createHeater(node.getId()));
+        // The listeners run on the writer thread, right after each write
+        valuesByVersion.put(node.getSensorVersion(), currentValues());
+        node.addSensorListener(sensors -> valuesByVersion.put(node.getSensorVersion(), currentValues()));
+    }
+
+    @After
+    public void restoreLogging() {
+        Logger.setInfoEnabled(infoEnabled);
+    }
+
+    @Test(timeout = 30_000)
+    public void readersSeeConsistentSnapshotsOfPeriodicReadings() throws InterruptedException {
+        runStress(node::generateNewSensorValues);
+    }
+
+    @Test(timeout = 30_000)
+    public void readersSeeSteppedValuesWithTheirVersion() throws InterruptedException {
+        runStress(() -> {
+            node.advanceSensorValues();
+            node.completeStep();
+        });
+    }
+
+    @Test(timeout = 30_000)
+    public void readersSeeValuesSteppedTogetherWithTheirVersion() throws InterruptedException {
+        // The sensors of the neighbour come right after those of the node in the store, so
+        // both are advanced in one pass
+        SensorActuatorNode neighbour = new SensorActuatorNode(2, store, new SplittableRandom(43));
+        neighbour.addSensors(DeviceFactory.createTemperatureSensor(neighbour.getRandom()), 2);
+        SensorActuatorNode[] nodes = {node, neighbour};
+        runStress(() -> {
+            SensorActuatorNode.advanceSensorValues(nodes, 0, nodes.length);
+            node.completeStep();
+            neighbour.completeStep();
+        });
+    }
+
+    @Test(timeout = 30_000)
+    public void concurrentActuatorChangesLeaveRatesMatchingStates() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + RUN_TIME;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < TOGGLER_COUNT; i++) {
+            int seed = i;
+            threads.add(new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(seed);
+                while (System.currentTimeMillis() < deadline) {
+                    for (Actuator actuator : node.getActuators()) {
+                        if (random.nextInt(4) == 0) {
+                            actuator.toggle();
+                        } else {
+                            actuator.set(random.nextBoolean());
+                        }
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertRatesMatchActuators();
+
+        for (Actuator actuator : node.getActuators()) {
+            actuator.turnOff();
+        }
+        assertRatesMatchActuators();
+    }
+
+    /**
+     * Check that the rates of all the sensors are the ones given by the actuators which are on.
+     */
+    private void assertRatesMatchActuators() {
+        double[] ratesByType = new double[DeviceTypeRegistry.size()];
+        double airExchange = 0;
+        for (Actuator actuator : node.getActuators()) {
+            if (actuator.isOn()) {
+                actuator.addImpacts(ratesByType);
+                airExchange += actuator.getAirExchange();
+            }
+        }
+        for (Sensor sensor : node.getSensors()) {
+            assertEquals("Rate of " + sensor.getType(), ratesByType[sensor.getTypeId()],
+                    store.getRate(sensor.getSlot()), 1e-9);
+            assertEquals("Exchange rate of " + sensor.getType(), airExchange,
+                    store.getExchangeRate(sensor.getSlot()), 1e-9);
+        }
+    }
+
+    /**
+     * Run the writer, the toggler and the readers for a while, then check what the readers saw.
+     *
+     * @param writeStep One write of new sensor values, notifying the listeners
+     */
+    private void runStress(Runnable writeStep) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + RUN_TIME;
+        AtomicLong reads = new AtomicLong();
+        AtomicLong inconsistent = new AtomicLong();
+        AtomicLong backwards = new AtomicLong();
+        AtomicLong outOfBounds = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        threads.add(new Thread(() -> {
+            while (System.currentTimeMillis() < deadline) {
+                writeStep.run();
+            }
+        }));
+        threads.add(new Thread(() -> {
+            SplittableRandom random = new SplittableRandom(7);
+            while (System.currentTimeMillis() < deadline) {
+                for (Actuator actuator : node.getActuators()) {
+                    actuator.set(random.nextBoolean());
+                }
+            }
+        }));
+        for (int i = 0; i < READER_COUNT; i++) {
+            threads.add(new Thread(() -> {
+                double[] values = new double[node.getSensors().size()];
+                long lastVersion = -1;
+                while (System.currentTimeMillis() < deadline) {
+                    long version = node.readSensorValues(values);
+                    if (version < lastVersion) {
+                        backwards.incrementAndGet();
+                    }
+                    lastVersion = version;
+                    if (!Arrays.equals(valuesWritten(version), values)) {
+                        inconsistent.incrementAndGet();
+                    }
+                    if (!withinBounds(values)) {
+                        outOfBounds.incrementAndGet();
+                    }
+                    reads.incrementAndGet();
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue("No reads done", reads.get() > 0);
+        assertTrue("No values written", valuesByVersion.size() > 1);
+        assertEquals("Snapshots not matching their version", 0, inconsistent.get());
+        assertEquals("Versions going backwards", 0, backwards.get());
+        assertEquals("Values out of bounds", 0, outOfBounds.get());
+    }
+
+    /**
+     * Get the values the writer wrote with a version, waiting for its listener to record them.
+     *
+     * @param version The version of the values
+     * @return The values, in the order of the sensors
+     */
+    private double[] valuesWritten(long version) {
+        double[] values;
+        while ((values = valuesByVersion.get(version)) == null) {
+            Thread.onSpinWait();
+        }
+        return values;
+    }
+
+    /**
+     * Read the values of the sensors directly. Only exact on the writer thread.
+     *
+     * @return The values, in the order of the sensors
+     */
+    private double[] currentValues() {
+        List<Sensor> sensors = node.getSensors();
+        double[] values = new double[sensors.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = sensors.get(i).getReading().getValue();
+        }
+        return values;
+    }
+
+    /**
+     * Check whether all the values are within the bounds of their sensors.
+     *
+     * @param values The values, in the order of the sensors
+     * @return True when every value is within the bounds of its sensor
+     */
+    private boolean withinBounds(double[] values) {
+        List<Sensor> sensors = node.getSensors();
+        for (int i = 0; i < values.length; i++) {
+            int slot = sensors.get(i).getSlot();
+            if (values[i] < store.getMin(slot) || values[i] > store.getMax(slot)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
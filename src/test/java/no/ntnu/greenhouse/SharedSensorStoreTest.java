@@ -0,0 +1,162 @@
+package no.ntnu.greenhouse;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.SplittableRandom;
+import no.ntnu.tools.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks greenhouses keeping the sensors of all their nodes in one {@link SensorStore}.
+ */
+public class SharedSensorStoreTest {
+    private static final int NODE_COUNT = 500;
+    private static final int STEPS = 20;
+
+    private boolean infoEnabled;
+
+    @Before
+    public void disableLogging() {
+        infoEnabled = Logger.isInfoEnabled();
+        Logger.setInfoEnabled(false);
+    }
+
+    @After
+    public void restoreLogging() {
+        Logger.setInfoEnabled(infoEnabled);
+    }
+
+    @Test
+    public void advanceGivesTheSameValuesAsIntegrateThenNoise() {
+        SensorStore fused = createStore();
+        SensorStore separate = createStore();
+        SplittableRandom fusedRandom = new SplittableRandom(1);
+        SplittableRandom separateRandom = new SplittableRandom(1);
+        for (int step = 0; step < STEPS; step++) {
+            fused.advance(0, fused.size(), 0.5, fusedRandom);
+            separate.integrate(0, separate.size(), 0.5);
+            separate.addRandomNoise(0, separate.size(), separateRandom);
+        }
+        for (int slot = 0; slot < fused.size(); slot++) {
+            assertEquals(separate.getValue(slot), fused.getValue(slot), 0);
+        }
+    }
+
+    @Test
+    public void nodesOfASharedStoreFollowEachOther() {
+        List<SensorActuatorNode> nodes = createTopology(7).buildNodes();
+        int nextSlot = nodes.get(0).getSensors().get(0).getSlot();
+        for (SensorActuatorNode node : nodes) {
+            for (Sensor sensor : node.getSensors()) {
+                assertEquals(nextSlot++, sensor.getSlot());
+            }
+        }
+    }
+
+    @Test
+    public void steppingTogetherAdvancesEveryNodeWhateverTheThreads() {
+        SensorActuatorNode[] parallel = createNodes();
+        SensorActuatorNode[] single = createNodes();
+        double[] initial = readAll(parallel);
+        NodeStepEngine parallelEngine = new NodeStepEngine(4);
+        NodeStepEngine singleEngine = new NodeStepEngine(1);
+        try {
+            for (int step = 0; step < STEPS; step++) {
+                long before = SensorActuatorNode.getLatestSensorVersion();
+                parallelEngine.advance(parallel);
+                singleEngine.advance(single);
+                for (SensorActuatorNode node : parallel) {
+                    assertTrue("Node " + node.getId() + " not advanced",
+                            node.getSensorVersion() > before);
+                }
+            }
+        } finally {
+            parallelEngine.shutdown();
+            singleEngine.shutdown();
+        }
+        double[] values = readAll(parallel);
+        assertArrayEquals(values, readAll(single), 0);
+        assertTrue("Values did not change", !Arrays.equals(initial, values));
+    }
+
+    /**
+     * Create a store with a few hundred sensors, some with their rates set.
+     *
+     * @return The store
+     */
+    private static SensorStore createStore() {
+        SensorStore store = new SensorStore();
+        for (int i = 0; i < 300; i++) {
+            int slot = store.add("temperature", 15, 40, 20 + i % 10, "°C");
+            store.setRate(slot, i % 3 - 1);
+            store.setExchangeRate(slot, i % 2);
+        }
+        return store;
+    }
+
+    /**
+     * Create nodes with the IDs 1 and up in one shared store, with the same random streams
+     * every time.
+     *
+     * @return The nodes
+     */
+    private static SensorActuatorNode[] createNodes() {
+        DeviceFactory.setSeed(7);
+        SensorStore store = new SensorStore();
+        SensorActuatorNode[] nodes = new SensorActuatorNode[NODE_COUNT];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = DeviceFactory.createNode(i + 1, store, 1 + i % 2, 2, 0, 0, 1);
+        }
+        return nodes;
+    }
+
+    /**
+     * Define a greenhouse of nodes with two kinds of nodes and a shared sensor store.
+     *
+     * @param seed The greenhouse seed
+     * @return The definition
+     */
+    private static GreenhouseTopology createTopology(long seed) {
+        DeviceFactory.setSeed(seed);
+        Properties properties = new Properties();
+        properties.setProperty("sharedSensorStore", "true");
+        properties.setProperty("templates", "warm,cold");
+        properties.setProperty("template.warm.count", String.valueOf(NODE_COUNT));
+        properties.setProperty("template.warm.temperatureSensors", "1");
+        properties.setProperty("template.warm.humiditySensors", "2");
+        properties.setProperty("template.warm.heaters", "1");
+        properties.setProperty("template.cold.count", String.valueOf(NODE_COUNT));
+        properties.setProperty("template.cold.temperatureSensors", "2");
+        properties.setProperty("template.cold.windows", "1");
+        return new GreenhouseTopology(properties);
+    }
+
+    /**
+     * Read the values of all the sensors of some nodes.
+     *
+     * @param nodes The nodes
+     * @return The values, node by node
+     */
+    private static double[] readAll(SensorActuatorNode[] nodes) {
+        int count = 0;
+        for (SensorActuatorNode node : nodes) {
+            count += node.getSensors().size();
+        }
+        double[] values = new double[count];
+        int index = 0;
+        for (SensorActuatorNode node : nodes) {
+            double[] nodeValues = new double[node.getSensors().size()];
+            node.readSensorValues(nodeValues);
+            System.arraycopy(nodeValues, 0, values, index, nodeValues.length);
+            index += nodeValues.length;
+        }
+        return values;
+    }
+}